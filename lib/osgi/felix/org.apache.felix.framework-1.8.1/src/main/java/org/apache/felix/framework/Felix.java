@@ -92,6 +92,8 @@ public class Felix extends BundleImpl implements Framework
 
     // Framework's active start level.
     private volatile int m_activeStartLevel = FelixConstants.FRAMEWORK_INACTIVE_STARTLEVEL;
+    // Number of threads starting the bundles of a start level.
+    private final int m_startLevelThreads;
 
     // Local file system cache.
     private BundleCache m_cache = null;
@@ -103,6 +105,9 @@ public class Felix extends BundleImpl implements Framework
     private long m_nextId = 1L;
     private final Object m_nextIdLock = new Object[0];
 
+    // Name of the system bundle data file holding the persisted wiring.
+    private static final String WIRING_FILE = "bundle.wiring";
+
     // List of event listeners.
     private EventDispatcher m_dispatcher = null;
 
@@ -294,7 +299,44 @@ public class Felix extends BundleImpl implements Framework
 
         // Create a resolver and its state.
         m_resolverState = new FelixResolverState(m_logger);
-        m_felixResolver = new FelixResolver(new Resolver(m_logger), m_resolverState);
+        int maxPermutations = Resolver.DEFAULT_MAX_PERMUTATIONS;
+        try
+        {
+            String s = (String) m_configMap.get(FelixConstants.RESOLVER_MAX_PERMUTATIONS_PROP);
+            maxPermutations = (s == null) ? maxPermutations : Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just use the default limit.
+        }
+        // Read the number of threads used to resolve independent groups
+        // of bundles, which defaults to the number of processors.
+        int resolverThreads = Runtime.getRuntime().availableProcessors();
+        try
+        {
+            String s = (String) m_configMap.get(FelixConstants.RESOLVER_THREADS_PROP);
+            resolverThreads = (s == null) ? resolverThreads : Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just use the default number of threads.
+        }
+        m_felixResolver = new FelixResolver(
+            new Resolver(m_logger, maxPermutations, resolverThreads), m_resolverState);
+
+        // Read the number of threads used to start the bundles of the same
+        // start level, which defaults to starting them one after another.
+        int startLevelThreads = 1;
+        try
+        {
+            String s = (String) m_configMap.get(FelixConstants.STARTLEVEL_THREADS_PROP);
+            startLevelThreads = (s == null) ? startLevelThreads : Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            // Ignore and just start bundles one after another.
+        }
+        m_startLevelThreads = Math.max(1, startLevelThreads);
 
         // Create the extension manager, which we will use as the module
         // definition for creating the system bundle module.
@@ -484,7 +526,7 @@ public class Felix extends BundleImpl implements Framework
             m_activatorList = (m_activatorList == null) ? new ArrayList() : new ArrayList(m_activatorList);
 
             // Initialize event dispatcher.
-            m_dispatcher = EventDispatcher.start(m_logger);
+            m_dispatcher = EventDispatcher.start(m_logger, m_configMap);
 
             // Create the bundle cache so that we can reload any installed bundles.
             try
@@ -609,6 +651,15 @@ ex.printStackTrace();
             // keep the max value.
             m_nextId = Math.max(m_nextId, loadNextId());
 
+            // Reinstate the wiring persisted during the last shutdown for
+            // the cached bundles that did not change since, so that they
+            // do not need to be resolved again.
+            Map wiringMap = loadWiring();
+            if (wiringMap != null)
+            {
+                m_felixResolver.restore(wiringMap);
+            }
+
             // Create service registry.
             m_registry = new ServiceRegistry(m_logger);
             m_dispatcher.setServiceRegistry(m_registry);
@@ -640,7 +691,7 @@ ex.printStackTrace();
             }
             catch (Throwable ex)
             {
-                EventDispatcher.shutdown();
+                m_dispatcher.shutdown();
                 m_logger.log(Logger.LOG_ERROR, "Unable to start system bundle.", ex);
                 throw new RuntimeException("Unable to start system bundle.");
             }
@@ -943,86 +994,227 @@ ex.printStackTrace();
                 Arrays.sort(bundles, comparator);
             }
 
-            // Stop or start the bundles according to the start level.
-            for (int i = 0; (bundles != null) && (i < bundles.length); i++)
+            // Stop or start the bundles according to the start level. When
+            // raising the start level with several start level threads, the
+            // bundles of a start level are started concurrently, but the
+            // next start level is only processed once they are all done.
+            for (int i = 0; (bundles != null) && (i < bundles.length); )
             {
-                BundleImpl impl = (BundleImpl) bundles[i];
-
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (impl.getBundleId() == 0)
+                int end = (lowering) ? i + 1 : getStartLevelEnd(bundles, i);
+                if (end - i > 1)
                 {
-                    continue;
+                    processStartLevelConcurrently(bundles, i, end);
                 }
+                else
+                {
+                    processStartLevel((BundleImpl) bundles[i]);
+                }
+                // Hint to GC to collect bundles; not sure why this
+                // is necessary, but it appears to help.
+                for (; i < end; i++)
+                {
+                    bundles[i] = null;
+                }
+            }
+        }
+
+        if (getState() == Bundle.ACTIVE)
+        {
+            fireFrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, this, null);
+        }
+    }
 
-                // Lock the current bundle.
+    /**
+     * Starts or stops the specified bundle depending on its start level
+     * and the active start level of the framework. Errors are logged and
+     * reported as framework events.
+     * @param impl The bundle to process.
+    **/
+    private void processStartLevel(BundleImpl impl)
+    {
+        // Ignore the system bundle, since its start() and
+        // stop() methods get called explicitly in Felix.start()
+        // and Felix.stop(), respectively.
+        if (impl.getBundleId() == 0)
+        {
+            return;
+        }
+
+        // Lock the current bundle.
+        try
+        {
+            acquireBundleLock(impl,
+                Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                | Bundle.STARTING | Bundle.STOPPING);
+        }
+        catch (IllegalStateException ex)
+        {
+            fireFrameworkEvent(FrameworkEvent.ERROR, impl, ex);
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "Error locking " + impl._getLocation(), ex);
+            return;
+        }
+
+        try
+        {
+            // Start the bundle if necessary.
+            if ((impl.getPersistentState() == Bundle.ACTIVE) &&
+                (impl.getStartLevel(getInitialBundleStartLevel())
+                    <= getActiveStartLevel()))
+            {
                 try
                 {
-                    acquireBundleLock(impl,
-                        Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                        | Bundle.STARTING | Bundle.STOPPING);
+                    long time = System.currentTimeMillis();
+                    startBundle(impl, false);
+                    m_logger.log(
+                        Logger.LOG_DEBUG,
+                        "Started " + impl._getLocation() + " in "
+                        + (System.currentTimeMillis() - time) + " ms");
                 }
-                catch (IllegalStateException ex)
+                catch (Throwable th)
                 {
-                    fireFrameworkEvent(FrameworkEvent.ERROR, impl, ex);
+                    fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
                     m_logger.log(
                         Logger.LOG_ERROR,
-                        "Error locking " + impl._getLocation(), ex);
-                    continue;
+                        "Error starting " + impl._getLocation(), th);
                 }
-
+            }
+            // Stop the bundle if necessary.
+            else if ((impl.getState() == Bundle.ACTIVE) &&
+                (impl.getStartLevel(getInitialBundleStartLevel())
+                    > getActiveStartLevel()))
+            {
                 try
                 {
-                    // Start the bundle if necessary.
-                    if ((impl.getPersistentState() == Bundle.ACTIVE) &&
-                        (impl.getStartLevel(getInitialBundleStartLevel())
-                            <= getActiveStartLevel()))
-                    {
-                        try
-                        {
-                            startBundle(impl, false);
-                        }
-                        catch (Throwable th)
-                        {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
-                            m_logger.log(
-                                Logger.LOG_ERROR,
-                                "Error starting " + impl._getLocation(), th);
-                        }
-                    }
-                    // Stop the bundle if necessary.
-                    else if ((impl.getState() == Bundle.ACTIVE) &&
-                        (impl.getStartLevel(getInitialBundleStartLevel())
-                            > getActiveStartLevel()))
+                    stopBundle(impl, false);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
+                    m_logger.log(
+                        Logger.LOG_ERROR,
+                        "Error stopping " + impl._getLocation(), th);
+                }
+            }
+        }
+        finally
+        {
+            // Always release bundle lock.
+            releaseBundleLock(impl);
+        }
+    }
+
+    /**
+     * Returns the index following the last bundle of the specified sorted
+     * array with the same start level as the bundle at the specified index,
+     * or just the next index if bundles are started one after another.
+    **/
+    private int getStartLevelEnd(Bundle[] bundles, int start)
+    {
+        int end = start + 1;
+        if (m_startLevelThreads > 1)
+        {
+            int level = ((BundleImpl) bundles[start])
+                .getStartLevel(getInitialBundleStartLevel());
+            while ((end < bundles.length) && (((BundleImpl) bundles[end])
+                .getStartLevel(getInitialBundleStartLevel()) == level))
+            {
+                end++;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Processes the bundles of the specified range on the calling thread
+     * helped by up to the configured number of start level threads, and
+     * returns once all of them have been processed. The bundles to start
+     * are resolved together first, so the threads only activate them;
+     * resolving while holding a bundle lock would make them compete for
+     * the global lock and for each other's bundle locks.
+    **/
+    private void processStartLevelConcurrently(
+        final Bundle[] bundles, int start, final int end)
+    {
+        List moduleList = new ArrayList();
+        for (int i = start; i < end; i++)
+        {
+            BundleImpl impl = (BundleImpl) bundles[i];
+            if ((impl.getBundleId() != 0)
+                && (impl.getState() == Bundle.INSTALLED)
+                && (impl.getPersistentState() == Bundle.ACTIVE)
+                && (impl.getStartLevel(getInitialBundleStartLevel())
+                    <= getActiveStartLevel()))
+            {
+                moduleList.add(impl.getCurrentModule());
+            }
+        }
+        if (moduleList.size() > 0)
+        {
+            try
+            {
+                m_felixResolver.resolve(
+                    (IModule[]) moduleList.toArray(new IModule[moduleList.size()]));
+            }
+            catch (ResolveException ex)
+            {
+                // The bundles that could not be resolved report the
+                // error when they are started.
+                m_logger.log(
+                    Logger.LOG_DEBUG,
+                    "Unable to resolve the bundles of start level "
+                    + getActiveStartLevel() + " together.", ex);
+            }
+        }
+
+        final int[] next = new int[] { start };
+        Runnable process = new Runnable() {
+            public void run()
+            {
+                while (true)
+                {
+                    BundleImpl impl = null;
+                    synchronized (next)
                     {
-                        try
+                        if (next[0] >= end)
                         {
-                            stopBundle(impl, false);
-                        }
-                        catch (Throwable th)
-                        {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, impl, th);
-                            m_logger.log(
-                                Logger.LOG_ERROR,
-                                "Error stopping " + impl._getLocation(), th);
+                            return;
                         }
+                        impl = (BundleImpl) bundles[next[0]++];
                     }
+                    processStartLevel(impl);
                 }
-                finally
-                {
-                    // Always release bundle lock.
-                    releaseBundleLock(impl);
-                }
-                // Hint to GC to collect bundle; not sure why this
-                // is necessary, but it appears to help.
-                bundles[i] = null;
             }
+        };
+
+        Thread[] threads = new Thread[Math.min(m_startLevelThreads, end - start) - 1];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(process, "FelixStartLevel-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
         }
+        process.run();
 
-        if (getState() == Bundle.ACTIVE)
+        // Wait for all bundles of the start level to be processed before
+        // moving on to the next start level.
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++)
         {
-            fireFrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED, this, null);
+            try
+            {
+                threads[i].join();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+                i--;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -3069,6 +3261,30 @@ ex.printStackTrace();
                 }
             }
 
+            // Resolve the target bundles together first, which shares the
+            // search for candidates among them. If that fails, the bundles
+            // are resolved one by one below, which also reports the bundles
+            // that cannot be resolved.
+            if ((targets != null) && (targets.length > 1))
+            {
+                IModule[] modules = new IModule[targets.length];
+                for (int i = 0; i < targets.length; i++)
+                {
+                    modules[i] = ((BundleImpl) targets[i]).getCurrentModule();
+                }
+                try
+                {
+                    m_felixResolver.resolve(modules);
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(
+                        Logger.LOG_DEBUG,
+                        "Unable to resolve bundles together, resolving them individually.",
+                        ex);
+                }
+            }
+
             // Now resolve each target bundle.
             boolean result = true;
 
@@ -3620,10 +3836,240 @@ ex.printStackTrace();
         }
     }
 
+    /**
+     * Reads the wiring persisted by <tt>saveWiring()</tt>. The wiring file
+     * contains a line for each resolved module with the module identifier,
+     * the module fingerprint, and the number of wires, followed by a line
+     * for each wire with the index of the importer's requirement, the
+     * exporter module identifier, and the index of the exporter's capability.
+     * @return a map of module identifiers to persisted wirings or <tt>null</tt>
+     *         if there is no usable wiring file.
+    **/
+    private Map loadWiring()
+    {
+        InputStream is = null;
+        BufferedReader br = null;
+        try
+        {
+            File file = m_cache.getSystemBundleDataFile(WIRING_FILE);
+            is = m_secureAction.getFileInputStream(file);
+            br = new BufferedReader(new InputStreamReader(is));
+            Map wiringMap = new HashMap();
+            String line;
+            while ((line = br.readLine()) != null)
+            {
+                StringTokenizer st = new StringTokenizer(line);
+                PersistedWiring wiring = new PersistedWiring(
+                    st.nextToken(), st.nextToken(), Integer.parseInt(st.nextToken()));
+                for (int i = 0; i < wiring.m_reqIdx.length; i++)
+                {
+                    st = new StringTokenizer(br.readLine());
+                    wiring.m_reqIdx[i] = Integer.parseInt(st.nextToken());
+                    wiring.m_exporterIds[i] = st.nextToken();
+                    wiring.m_capIdx[i] = Integer.parseInt(st.nextToken());
+                }
+                wiringMap.put(wiring.m_moduleId, wiring);
+            }
+            return wiringMap;
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Ignore this case because we assume that this is the
+            // initial startup of the framework and therefore the
+            // file does not exist yet.
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_WARNING,
+                "Unable to read wiring from persistent storage.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (br != null) br.close();
+                if (is != null) is.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to close wiring file.",
+                    ex);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Persists the wiring of all resolved modules in the format read by
+     * <tt>loadWiring()</tt>. Modules with attached fragments or bundle
+     * wires are not persisted, since their wiring cannot be reinstated
+     * without the resolver. Dynamically imported packages are not
+     * persisted either, since they are imported again on demand.
+    **/
+    private void saveWiring()
+    {
+        OutputStream os = null;
+        BufferedWriter bw = null;
+        try
+        {
+            File file = m_cache.getSystemBundleDataFile(WIRING_FILE);
+            os = m_secureAction.getFileOutputStream(file);
+            bw = new BufferedWriter(new OutputStreamWriter(os));
+            IModule[] modules = m_resolverState.getModules();
+            for (int modIdx = 0; modIdx < modules.length; modIdx++)
+            {
+                IModule module = modules[modIdx];
+                IModule[] fragments = ((ModuleImpl) module).getFragments();
+                if (!module.isResolved()
+                    || ((fragments != null) && (fragments.length > 0)))
+                {
+                    continue;
+                }
+
+                // Find the requirement and capability of each wire.
+                IWire[] wires = module.getWires();
+                StringBuffer sb = new StringBuffer();
+                int count = 0;
+                for (int wireIdx = 0; (wires != null) && (wireIdx < wires.length); wireIdx++)
+                {
+                    int reqIdx = indexOf(module.getRequirements(), wires[wireIdx].getRequirement());
+                    int capIdx = indexOf(
+                        wires[wireIdx].getExporter().getCapabilities(), wires[wireIdx].getCapability());
+                    if (!wires[wireIdx].getCapability().getNamespace().equals(
+                        ICapability.PACKAGE_NAMESPACE) || (capIdx < 0))
+                    {
+                        count = -1;
+                        break;
+                    }
+                    else if (reqIdx >= 0)
+                    {
+                        sb.append(reqIdx).append(' ')
+                            .append(wires[wireIdx].getExporter().getId()).append(' ')
+                            .append(capIdx).append('\n');
+                        count++;
+                    }
+                }
+
+                if (count >= 0)
+                {
+                    String s = module.getId() + " "
+                        + getFingerprint(module) + " " + count + "\n" + sb;
+                    bw.write(s, 0, s.length());
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(
+                Logger.LOG_WARNING,
+                "Unable to save wiring to persistent storage.",
+                ex);
+        }
+        finally
+        {
+            try
+            {
+                if (bw != null) bw.close();
+                if (os != null) os.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(
+                    Logger.LOG_WARNING,
+                    "Unable to close wiring file.",
+                    ex);
+            }
+        }
+    }
+
+    private static int indexOf(Object[] array, Object o)
+    {
+        for (int i = 0; (array != null) && (i < array.length); i++)
+        {
+            if (array[i] == o)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a fingerprint of the specified module's identity,
+     * capabilities, and requirements, which changes whenever the
+     * module's metadata relevant to resolving changes.
+     * @param module the module to fingerprint.
+     * @return the fingerprint as a hexadecimal string.
+    **/
+    private static String getFingerprint(IModule module)
+    {
+        StringBuffer sb = new StringBuffer();
+        sb.append(module.getSymbolicName()).append('|').append(module.getVersion());
+        ICapability[] caps = module.getCapabilities();
+        for (int i = 0; (caps != null) && (i < caps.length); i++)
+        {
+            sb.append('|').append(caps[i]);
+        }
+        // The string form of a requirement is only its namespace and
+        // filter, so add the flags and directives, like resolution:=,
+        // which change how it may be wired.
+        IRequirement[] reqs = module.getRequirements();
+        for (int i = 0; (reqs != null) && (i < reqs.length); i++)
+        {
+            sb.append('|').append(reqs[i])
+                .append(';').append(reqs[i].isOptional())
+                .append(';').append(reqs[i].isMultiple());
+            if (reqs[i] instanceof Requirement)
+            {
+                R4Directive[] dirs = ((Requirement) reqs[i]).getDirectives();
+                for (int dirIdx = 0; (dirs != null) && (dirIdx < dirs.length); dirIdx++)
+                {
+                    sb.append(';').append(dirs[dirIdx].getName())
+                        .append(":=").append(dirs[dirIdx].getValue());
+                }
+            }
+        }
+
+        // Use a 64-bit FNV-1a hash of the metadata.
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < sb.length(); i++)
+        {
+            hash ^= sb.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+
     //
     // Miscellaneous inner classes.
     //
 
+    /**
+     * The wiring of a module as persisted by <tt>saveWiring()</tt>.
+    **/
+    static class PersistedWiring
+    {
+        public final String m_moduleId;
+        public final String m_fingerprint;
+        public final int[] m_reqIdx;
+        public final String[] m_exporterIds;
+        public final int[] m_capIdx;
+
+        public PersistedWiring(String moduleId, String fingerprint, int count)
+        {
+            m_moduleId = moduleId;
+            m_fingerprint = fingerprint;
+            m_reqIdx = new int[count];
+            m_exporterIds = new String[count];
+            m_capIdx = new int[count];
+        }
+    }
+
     public class FelixResolver
     {
         private final Resolver m_resolver;
@@ -3654,94 +4100,330 @@ ex.printStackTrace();
 
                 try
                 {
-                    BundleImpl bundle = (BundleImpl) rootModule.getBundle();
-
-                    // Extensions are resolved differently.
-                    if (bundle.isExtension())
+                    // Resolve the module.
+                    IModule newRootModule = prepareResolve(rootModule);
+                    if (newRootModule != null)
                     {
-                        return;
-                    }
+                        Map resolvedModuleWireMap = m_resolver.resolve(m_resolverState, newRootModule);
 
-                    // If a security manager is installed, then check for permission
-                    // to import the necessary packages.
-                    if (System.getSecurityManager() != null)
-                    {
-                        BundleProtectionDomain pd = (BundleProtectionDomain)
-                            bundle.getProtectionDomain();
+                        // Mark all modules as resolved.
+                        markResolvedModules(resolvedModuleWireMap);
+                    }
+                }
+                finally
+                {
+                    // Always release the global lock.
+                    releaseGlobalLock();
+                }
+            }
+        }
 
-/*
- TODO: SECURITY - We need to fix this import check by looking at the wire
-            associated with it, not the import since we don't know the
-            package name associated with the import since it is a filter.
+        /**
+         * Resolves the specified modules together, sharing the search for
+         * candidates among them. Groups of modules that share no unresolved
+         * dependencies are searched for a consistent class space
+         * independently and concurrently. Modules that cannot be resolved
+         * are left unresolved and do not prevent the others from being
+         * resolved; an exception is only thrown if none of the modules can
+         * be resolved. The wires of all resolved modules are committed
+         * together once all groups have been searched.
+         * @param rootModules the modules to resolve.
+         * @throws ResolveException if the modules cannot be resolved together.
+        **/
+        public void resolve(IModule[] rootModules) throws ResolveException
+        {
+            // Acquire global lock.
+            boolean locked = acquireGlobalLock();
+            if (!locked)
+            {
+                throw new ResolveException(
+                    "Unable to acquire global lock for resolve.", null, null);
+            }
 
-                    IRequirement[] imports = bundle.getInfo().getCurrentModule().getRequirements();
-                    for (int i = 0; i < imports.length; i++)
+            try
+            {
+                List rootList = new ArrayList();
+                for (int i = 0; i < rootModules.length; i++)
+                {
+                    if (!rootModules[i].isResolved())
                     {
-                        if (imports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+                        try
                         {
-                            PackagePermission perm = new PackagePermission(
-                                imports[i].???,
-                                PackagePermission.IMPORT);
-
-                            if (!pd.impliesDirect(perm))
+                            IModule newRootModule = prepareResolve(rootModules[i]);
+                            if (newRootModule != null)
                             {
-                                throw new java.security.AccessControlException(
-                                    "PackagePermission.IMPORT denied for import: " +
-                                    imports[i].getName(), perm);
+                                rootList.add(newRootModule);
                             }
                         }
+                        catch (ResolveException ex)
+                        {
+                            // Leave the module unresolved.
+                        }
                     }
+                }
+
+                if (rootList.size() > 0)
+                {
+                    // Resolve the modules.
+                    Map resolvedModuleWireMap = m_resolver.resolve(m_resolverState,
+                        (IModule[]) rootList.toArray(new IModule[rootList.size()]));
+
+                    // Mark all modules as resolved.
+                    markResolvedModules(resolvedModuleWireMap);
+                }
+            }
+            finally
+            {
+                // Always release the global lock.
+                releaseGlobalLock();
+            }
+        }
+
+        // Performs the checks needed before resolving the specified module
+        // and merges its fragments. Returns the module to resolve, which
+        // may differ from the specified one, or null if there is nothing
+        // to resolve. Must be called with the global lock held.
+        private IModule prepareResolve(IModule rootModule) throws ResolveException
+        {
+            BundleImpl bundle = (BundleImpl) rootModule.getBundle();
+
+            // Extensions are resolved differently.
+            if (bundle.isExtension())
+            {
+                return null;
+            }
+
+            // If a security manager is installed, then check for permission
+            // to import the necessary packages.
+            if (System.getSecurityManager() != null)
+            {
+                BundleProtectionDomain pd = (BundleProtectionDomain)
+                    bundle.getProtectionDomain();
+
+/*
+ TODO: SECURITY - We need to fix this import check by looking at the wire
+    associated with it, not the import since we don't know the
+    package name associated with the import since it is a filter.
+
+            IRequirement[] imports = bundle.getInfo().getCurrentModule().getRequirements();
+            for (int i = 0; i < imports.length; i++)
+            {
+                if (imports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+                {
+                    PackagePermission perm = new PackagePermission(
+                        imports[i].???,
+                        PackagePermission.IMPORT);
+
+                    if (!pd.impliesDirect(perm))
+                    {
+                        throw new java.security.AccessControlException(
+                            "PackagePermission.IMPORT denied for import: " +
+                            imports[i].getName(), perm);
+                    }
+                }
+            }
 */
-                        // Check export permission for all exports of the current module.
-                        ICapability[] exports = rootModule.getCapabilities();
-                        for (int i = 0; i < exports.length; i++)
+                // Check export permission for all exports of the current module.
+                ICapability[] exports = rootModule.getCapabilities();
+                for (int i = 0; i < exports.length; i++)
+                {
+                    if (exports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+                    {
+                        PackagePermission perm = new PackagePermission(
+                            (String) exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), PackagePermission.EXPORT);
+
+                        if (!pd.impliesDirect(perm))
                         {
-                            if (exports[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
-                            {
-                                PackagePermission perm = new PackagePermission(
-                                    (String) exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), PackagePermission.EXPORT);
-
-                                if (!pd.impliesDirect(perm))
-                                {
-                                    throw new java.security.AccessControlException(
-                                        "PackagePermission.EXPORT denied for export: " +
-                                        exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), perm);
-                                }
-                            }
+                            throw new java.security.AccessControlException(
+                                "PackagePermission.EXPORT denied for export: " +
+                                exports[i].getProperties().get(ICapability.PACKAGE_PROPERTY), perm);
                         }
                     }
+                }
+            }
 
-                    verifyExecutionEnvironment(bundle);
+            verifyExecutionEnvironment(bundle);
 
-                    // Before trying to resolve, tell the resolver state to
-                    // merge all fragments into host, which may result in the
-                    // rootModule changing if the real root is a module.
-                    IModule newRootModule;
+            // Before trying to resolve, tell the resolver state to
+            // merge all fragments into host, which may result in the
+            // rootModule changing if the real root is a module.
+            IModule newRootModule;
+            try
+            {
+                newRootModule = m_resolverState.mergeFragments(rootModule);
+            }
+            catch (Exception ex)
+            {
+                ex.printStackTrace();
+                throw new ResolveException("Unable to merge fragments", rootModule, null);
+            }
+
+            return (Util.isFragment(newRootModule)) ? null : newRootModule;
+        }
+
+        /**
+         * Reinstates the persisted wiring of unresolved modules without
+         * resolving them. The wiring of a module is only reinstated if the
+         * fingerprints of the module and of all its exporters match the
+         * persisted ones, every wire still connects a satisfied requirement
+         * and capability, and all of its unresolved exporters are reinstated
+         * too. All other modules are left to be resolved by the resolver.
+         * @param wiringMap a map of module identifiers to persisted wirings.
+        **/
+        public void restore(Map wiringMap)
+        {
+            // Permissions are checked when resolving, so let the resolver
+            // handle all modules if there is a security manager.
+            if (System.getSecurityManager() != null)
+            {
+                return;
+            }
+
+            // Acquire global lock.
+            boolean locked = acquireGlobalLock();
+            if (!locked)
+            {
+                return;
+            }
+
+            try
+            {
+                IModule[] modules = m_resolverState.getModules();
+                Map moduleMap = new HashMap();
+                for (int i = 0; i < modules.length; i++)
+                {
+                    moduleMap.put(modules[i].getId(), modules[i]);
+                }
+
+                // Create the persisted wires of each unchanged module.
+                Map fingerprintMap = new HashMap();
+                Map resolvedModuleWireMap = new HashMap();
+                for (int modIdx = 0; modIdx < modules.length; modIdx++)
+                {
+                    IModule module = modules[modIdx];
+                    PersistedWiring wiring = (PersistedWiring) wiringMap.get(module.getId());
+                    if ((wiring == null) || module.isResolved()
+                        || ((BundleImpl) module.getBundle()).isExtension()
+                        || !isUnchanged(module, wiringMap, fingerprintMap)
+                        || m_resolverState.hasFragments(module))
+                    {
+                        continue;
+                    }
                     try
                     {
-                        newRootModule = m_resolverState.mergeFragments(rootModule);
+                        verifyExecutionEnvironment((BundleImpl) module.getBundle());
                     }
-                    catch (Exception ex)
+                    catch (ResolveException ex)
                     {
-                        ex.printStackTrace();
-                        throw new ResolveException("Unable to merge fragments", rootModule, null);
+                        continue;
                     }
 
-                    if (!Util.isFragment(newRootModule))
+                    IRequirement[] reqs = module.getRequirements();
+                    IWire[] wires = new IWire[wiring.m_reqIdx.length];
+                    for (int wireIdx = 0; (wires != null) && (wireIdx < wires.length); wireIdx++)
                     {
-                        // Resolve the module.
-                        Map resolvedModuleWireMap = m_resolver.resolve(m_resolverState, newRootModule);
+                        IModule exporter = (IModule) moduleMap.get(wiring.m_exporterIds[wireIdx]);
+                        ICapability[] caps = (exporter == null) ? null : exporter.getCapabilities();
+                        int reqIdx = wiring.m_reqIdx[wireIdx];
+                        int capIdx = wiring.m_capIdx[wireIdx];
+                        if ((exporter == null) || (reqs == null) || (caps == null)
+                            || (reqIdx < 0) || (reqIdx >= reqs.length)
+                            || (capIdx < 0) || (capIdx >= caps.length)
+                            || !caps[capIdx].getNamespace().equals(ICapability.PACKAGE_NAMESPACE)
+                            || !reqs[reqIdx].isSatisfied(caps[capIdx])
+                            || !isUnchanged(exporter, wiringMap, fingerprintMap))
+                        {
+                            wires = null;
+                        }
+                        else
+                        {
+                            wires[wireIdx] = new R4Wire(module, reqs[reqIdx], exporter, caps[capIdx]);
+                        }
+                    }
+                    if ((wires != null) && isCovered(reqs, wiring))
+                    {
+                        resolvedModuleWireMap.put(module, wires);
+                    }
+                }
 
-                        // Mark all modules as resolved.
-                        markResolvedModules(resolvedModuleWireMap);
+                // Drop the modules wired to unresolved exporters whose
+                // wiring is not reinstated, until no more are dropped.
+                boolean dropped = true;
+                while (dropped)
+                {
+                    dropped = false;
+                    for (Iterator iter = resolvedModuleWireMap.entrySet().iterator(); iter.hasNext(); )
+                    {
+                        Map.Entry entry = (Map.Entry) iter.next();
+                        IWire[] wires = (IWire[]) entry.getValue();
+                        for (int wireIdx = 0; wireIdx < wires.length; wireIdx++)
+                        {
+                            if (!wires[wireIdx].getExporter().isResolved()
+                                && !resolvedModuleWireMap.containsKey(wires[wireIdx].getExporter()))
+                            {
+                                iter.remove();
+                                dropped = true;
+                                break;
+                            }
+                        }
                     }
                 }
-                finally
+
+                m_logger.log(
+                    Logger.LOG_DEBUG,
+                    "Reinstated the wiring of " + resolvedModuleWireMap.size()
+                    + " of " + wiringMap.size() + " modules.");
+
+                // Mark all modules as resolved.
+                markResolvedModules(resolvedModuleWireMap);
+            }
+            finally
+            {
+                // Always release the global lock.
+                releaseGlobalLock();
+            }
+        }
+
+        // Returns whether every mandatory requirement is satisfied by one
+        // of the persisted wires, since a module must not be marked as
+        // resolved with a mandatory requirement left unwired.
+        private boolean isCovered(IRequirement[] reqs, PersistedWiring wiring)
+        {
+            for (int reqIdx = 0; (reqs != null) && (reqIdx < reqs.length); reqIdx++)
+            {
+                if (reqs[reqIdx].isOptional())
                 {
-                    // Always release the global lock.
-                    releaseGlobalLock();
+                    continue;
+                }
+                boolean covered = false;
+                for (int wireIdx = 0; !covered && (wireIdx < wiring.m_reqIdx.length); wireIdx++)
+                {
+                    covered = (wiring.m_reqIdx[wireIdx] == reqIdx);
                 }
+                if (!covered)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Returns whether the fingerprint of the specified module matches
+        // its persisted fingerprint, caching the computed fingerprints.
+        private boolean isUnchanged(IModule module, Map wiringMap, Map fingerprintMap)
+        {
+            PersistedWiring wiring = (PersistedWiring) wiringMap.get(module.getId());
+            if (wiring == null)
+            {
+                return false;
             }
+            String fingerprint = (String) fingerprintMap.get(module);
+            if (fingerprint == null)
+            {
+                fingerprint = getFingerprint(module);
+                fingerprintMap.put(module, fingerprint);
+            }
+            return fingerprint.equals(wiring.m_fingerprint);
         }
 
         public IWire resolveDynamicImport(IModule importer, String pkgName) throws ResolveException
@@ -3982,7 +4664,7 @@ m_logger.log(Logger.LOG_DEBUG, "DYNAMIC WIRE: " + newWires[newWires.length - 1])
             }
 
             // Shutdown event dispatching queue.
-            EventDispatcher.shutdown();
+            m_dispatcher.shutdown();
 
             // Since there may be updated and uninstalled bundles that
             // have not been refreshed, we will take care of refreshing
@@ -4026,6 +4708,10 @@ m_logger.log(Logger.LOG_DEBUG, "DYNAMIC WIRE: " + newWires[newWires.length - 1])
                 }
             }
 
+            // Persist the wiring of the resolved bundles so that it can be
+            // reinstated on the next startup.
+            saveWiring();
+
             // Dispose of the bundles to close their associated contents.
             bundles = getBundles();
             for (int i = 0; i < bundles.length; i++)
@@ -28,6 +28,8 @@ import org.apache.felix.framework.searchpolicy.ModuleImpl;
 import org.apache.felix.framework.searchpolicy.Resolver;
 import org.apache.felix.framework.searchpolicy.PackageSource;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.util.manifestparser.Capability;
 import org.apache.felix.framework.util.manifestparser.R4Attribute;
 import org.apache.felix.framework.util.manifestparser.R4Directive;
 import org.apache.felix.framework.util.manifestparser.Requirement;
@@ -52,6 +54,12 @@ public class FelixResolverState implements Resolver.ResolverState
     private final Map m_resolvedPkgIndexMap = new HashMap();
     // Maps a module to an array of capabilities.
     private final Map m_resolvedCapMap = new HashMap();
+    // Maps a bundle symbolic name to an array of unresolved modules
+    // sorted by version.
+    private final Map m_unresolvedModuleIndexMap = new HashMap();
+    // Maps a bundle symbolic name to an array of resolved modules
+    // sorted by version.
+    private final Map m_resolvedModuleIndexMap = new HashMap();
 
     // Reusable empty array.
     private static final IModule[] m_emptyModules = new IModule[0];
@@ -361,12 +369,46 @@ public class FelixResolverState implements Resolver.ResolverState
 
     private void addFragment(IModule module)
     {
-        indexFragment(m_fragmentMap, module);
+        indexModule(m_fragmentMap, module);
 //        System.out.println("+++ BEGIN FRAGMENT DUMP");
 //        dumpModuleIndexMap(m_fragmentMap);
 //        System.out.println("+++ END FRAGMENT DUMP");
     }
 
+    /**
+     * Returns whether any installed fragment could attach to the specified
+     * host module when it is resolved.
+     * @param host the host module.
+     * @return <tt>true</tt> if a fragment matches the host, <tt>false</tt> otherwise.
+    **/
+    public synchronized boolean hasFragments(IModule host)
+    {
+        ICapability[] caps = host.getCapabilities();
+        for (int capIdx = 0; (caps != null) && (capIdx < caps.length); capIdx++)
+        {
+            if (caps[capIdx].getNamespace().equals(ICapability.HOST_NAMESPACE))
+            {
+                for (Iterator it = m_fragmentMap.values().iterator(); it.hasNext(); )
+                {
+                    IModule[] fragments = (IModule[]) it.next();
+                    for (int fragIdx = 0; fragIdx < fragments.length; fragIdx++)
+                    {
+                        IRequirement[] reqs = fragments[fragIdx].getRequirements();
+                        for (int reqIdx = 0; (reqs != null) && (reqIdx < reqs.length); reqIdx++)
+                        {
+                            if (reqs[reqIdx].getNamespace().equals(ICapability.HOST_NAMESPACE)
+                                && reqs[reqIdx].isSatisfied(caps[capIdx]))
+                            {
+                                return true;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
     public synchronized void addModule(IModule module)
     {
         if (Util.isFragment(module))
@@ -379,6 +421,12 @@ public class FelixResolverState implements Resolver.ResolverState
             // exports to simplify later processing when resolving bundles.
             m_moduleList.add(module);
 
+            // Index the module by symbolic name for Require-Bundle lookups.
+            if (module.getSymbolicName() != null)
+            {
+                indexModule(m_unresolvedModuleIndexMap, module);
+            }
+
             ICapability[] caps = module.getCapabilities();
 
             // Add exports to unresolved package map.
@@ -405,16 +453,7 @@ public class FelixResolverState implements Resolver.ResolverState
         // If module is a fragment, then remove from fragment map.
         if (Util.isFragment(module))
         {
-            IModule[] fragments = (IModule[]) m_fragmentMap.get(module.getSymbolicName());
-            fragments = removeModuleFromArray(fragments, module);
-            if (fragments.length == 0)
-            {
-                m_fragmentMap.remove(module.getSymbolicName());
-            }
-            else
-            {
-                m_fragmentMap.put(module.getSymbolicName(), fragments);
-            }
+            unindexModule(m_fragmentMap, module);
         }
         // If it is not a fragment, then we need remove its exports
         // from the "resolved" and "unresolved" package maps, remove
@@ -424,6 +463,10 @@ public class FelixResolverState implements Resolver.ResolverState
         {
             m_moduleList.remove(module);
 
+            // Remove the module from the symbolic name maps.
+            unindexModule(m_unresolvedModuleIndexMap, module);
+            unindexModule(m_resolvedModuleIndexMap, module);
+
             // Remove exports from package maps.
             ICapability[] caps = module.getCapabilities();
             for (int i = 0; (caps != null) && (i < caps.length); i++)
@@ -500,6 +543,13 @@ public class FelixResolverState implements Resolver.ResolverState
                     module,
                     caps[i]);
             }
+            // If the capability is the module's bundle capability, then
+            // add the module to the "resolved" symbolic name index.
+            else if (caps[i].getNamespace().equals(ICapability.MODULE_NAMESPACE)
+                && (module.getSymbolicName() != null))
+            {
+                indexModule(m_resolvedModuleIndexMap, module);
+            }
         }
     }
 
@@ -562,6 +612,9 @@ public class FelixResolverState implements Resolver.ResolverState
             // decided to honor the import and discard the export.
             ICapability[] caps = module.getCapabilities();
 
+            // Remove the module from the "unresolved" symbolic name index.
+            unindexModule(m_unresolvedModuleIndexMap, module);
+
             // First remove all existing capabilities from the "unresolved" map.
             for (int capIdx = 0; (caps != null) && (capIdx < caps.length); capIdx++)
             {
@@ -633,6 +686,13 @@ public class FelixResolverState implements Resolver.ResolverState
                             module,
                             capsCopy[capIdx]);
                     }
+                    // If the capability is the module's bundle capability,
+                    // then add it to the "resolved" symbolic name index.
+                    else if (capsCopy[capIdx].getNamespace().equals(ICapability.MODULE_NAMESPACE)
+                        && (module.getSymbolicName() != null))
+                    {
+                        indexModule(m_resolvedModuleIndexMap, module);
+                    }
                 }
             }
         }
@@ -654,6 +714,10 @@ public class FelixResolverState implements Resolver.ResolverState
             String pkgName = ((Requirement) req).getTargetName();
             IModule[] modules = (IModule[]) m_resolvedPkgIndexMap.get(pkgName);
 
+            // The package index is already sorted in candidate order, so
+            // we only need to filter it into a single result array.
+            int count = 0;
+            boolean sorted = true;
             for (int modIdx = 0; (modules != null) && (modIdx < modules.length); modIdx++)
             {
                 ICapability resolvedCap = Util.getSatisfyingCapability(modules[modIdx], req);
@@ -672,14 +736,50 @@ public class FelixResolverState implements Resolver.ResolverState
                     }
                     else
                     {
-                        PackageSource[] tmp = new PackageSource[candidates.length + 1];
-                        System.arraycopy(candidates, 0, tmp, 0, candidates.length);
-                        tmp[candidates.length] =
-                            new PackageSource(modules[modIdx], resolvedCap);
-                        candidates = tmp;
+                        if (count == 0)
+                        {
+                            candidates = new PackageSource[modules.length - modIdx];
+                        }
+                        candidates[count] = new PackageSource(modules[modIdx], resolvedCap);
+                        sorted = sorted && ((count == 0)
+                            || (candidates[count - 1].compareTo(candidates[count]) <= 0));
+                        count++;
                     }
                 }
             }
+            return trimCandidates(candidates, count, sorted);
+        }
+        else if (req.getNamespace().equals(ICapability.MODULE_NAMESPACE)
+            && (((Requirement) req).getTargetName() != null))
+        {
+            IModule[] modules = (IModule[]) m_resolvedModuleIndexMap.get(
+                ((Requirement) req).getTargetName());
+
+            // The symbolic name index is already sorted in candidate order,
+            // so we only need to filter it into a single result array.
+            int count = 0;
+            for (int modIdx = 0; (modules != null) && (modIdx < modules.length); modIdx++)
+            {
+                ICapability[] resolvedCaps = (ICapability[]) m_resolvedCapMap.get(modules[modIdx]);
+                for (int capIdx = 0; (resolvedCaps != null) && (capIdx < resolvedCaps.length); capIdx++)
+                {
+                    if (req.isSatisfied(resolvedCaps[capIdx]))
+                    {
+                        if (count == 0)
+                        {
+                            candidates = new PackageSource[modules.length - modIdx];
+                        }
+                        else if (count == candidates.length)
+                        {
+                            PackageSource[] tmp = new PackageSource[count * 2];
+                            System.arraycopy(candidates, 0, tmp, 0, count);
+                            candidates = tmp;
+                        }
+                        candidates[count++] = new PackageSource(modules[modIdx], resolvedCaps[capIdx]);
+                    }
+                }
+            }
+            return trimCandidates(candidates, count, true);
         }
         else
         {
@@ -716,19 +816,28 @@ public class FelixResolverState implements Resolver.ResolverState
                     }
                 }
             }
+            Arrays.sort(candidates);
         }
-        Arrays.sort(candidates);
         return candidates;
     }
 
     public synchronized PackageSource[] getUnresolvedCandidates(IRequirement req)
     {
-        // Get all modules.
+        // Get all modules. For package and bundle requirements with a
+        // target name, the index maps are already sorted in candidate order.
         IModule[] modules = null;
+        boolean sorted = false;
         if (req.getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
             (((Requirement) req).getTargetName() != null))
         {
             modules = (IModule[]) m_unresolvedPkgIndexMap.get(((Requirement) req).getTargetName());
+            sorted = true;
+        }
+        else if (req.getNamespace().equals(ICapability.MODULE_NAMESPACE) &&
+            (((Requirement) req).getTargetName() != null))
+        {
+            modules = (IModule[]) m_unresolvedModuleIndexMap.get(((Requirement) req).getTargetName());
+            sorted = true;
         }
         else
         {
@@ -737,6 +846,7 @@ public class FelixResolverState implements Resolver.ResolverState
 
         // Create list of compatible providers.
         PackageSource[] candidates = m_emptySources;
+        int count = 0;
         for (int modIdx = 0; (modules != null) && (modIdx < modules.length); modIdx++)
         {
             // Get the module's export package for the target package.
@@ -745,26 +855,57 @@ public class FelixResolverState implements Resolver.ResolverState
             // the unresolved candidate to the list.
             if ((cap != null) && !modules[modIdx].isResolved())
             {
-                PackageSource[] tmp = new PackageSource[candidates.length + 1];
-                System.arraycopy(candidates, 0, tmp, 0, candidates.length);
-                tmp[candidates.length] = new PackageSource(modules[modIdx], cap);
-                candidates = tmp;
+                if (count == 0)
+                {
+                    candidates = new PackageSource[modules.length - modIdx];
+                }
+                candidates[count] = new PackageSource(modules[modIdx], cap);
+                sorted = sorted && ((count == 0)
+                    || (candidates[count - 1].compareTo(candidates[count]) <= 0));
+                count++;
             }
         }
-        Arrays.sort(candidates);
-        return candidates;
+        return trimCandidates(candidates, count, sorted);
     }
 
     //
     // Utility methods.
     //
 
+    /**
+     * Returns the first <tt>count</tt> candidates of the specified array,
+     * sorting them only if they were not already collected in candidate
+     * order from a sorted index.
+     * @param candidates the collected candidates.
+     * @param count the number of valid candidates in the array.
+     * @param sorted whether the candidates are already in candidate order.
+     * @return an exactly-sized, sorted array of candidates.
+    **/
+    private static PackageSource[] trimCandidates(
+        PackageSource[] candidates, int count, boolean sorted)
+    {
+        if (count == 0)
+        {
+            return m_emptySources;
+        }
+        else if (count < candidates.length)
+        {
+            PackageSource[] tmp = new PackageSource[count];
+            System.arraycopy(candidates, 0, tmp, 0, count);
+            candidates = tmp;
+        }
+        if (!sorted)
+        {
+            Arrays.sort(candidates);
+        }
+        return candidates;
+    }
+
     private void indexPackageCapability(Map map, IModule module, ICapability capability)
     {
         if (capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
         {
-            String pkgName = (String)
-                capability.getProperties().get(ICapability.PACKAGE_PROPERTY);
+            String pkgName = ((Capability) capability).getPackageName();
             IModule[] modules = (IModule[]) map.get(pkgName);
 
             // We want to add the module into the list of exporters
@@ -776,20 +917,18 @@ public class FelixResolverState implements Resolver.ResolverState
             }
             else
             {
-                Version version = (Version)
-                    capability.getProperties().get(ICapability.VERSION_PROPERTY);
-                Version middleVersion = null;
+                Version version = ((Capability) capability).getPackageVersion();
+                long versionKey = ((Capability) capability).getPackageVersionKey();
                 int top = 0, bottom = modules.length - 1, middle = 0;
                 while (top <= bottom)
                 {
                     middle = (bottom - top) / 2 + top;
-                    middleVersion = (Version)
-                        getExportPackageCapability(
-                            modules[middle], pkgName)
-                                .getProperties()
-                                    .get(ICapability.VERSION_PROPERTY);
+                    Capability middleCap = (Capability)
+                        getExportPackageCapability(modules[middle], pkgName);
                     // Sort in reverse version order.
-                    int cmp = middleVersion.compareTo(version);
+                    int cmp = VersionRange.compare(
+                        middleCap.getPackageVersionKey(), middleCap.getPackageVersion(),
+                        versionKey, version);
                     if (cmp < 0)
                     {
                         bottom = middle - 1;
@@ -829,13 +968,13 @@ public class FelixResolverState implements Resolver.ResolverState
         }
     }
 
-    private void indexFragment(Map map, IModule module)
+    private void indexModule(Map map, IModule module)
     {
         IModule[] modules = (IModule[]) map.get(module.getSymbolicName());
 
-        // We want to add the fragment into the list of matching
-        // fragments in sorted order (descending version and
-        // ascending bundle identifier). Insert using a simple
+        // We want to add the module into the list of modules with
+        // the same symbolic name in sorted order (descending version
+        // and ascending bundle identifier). Insert using a simple
         // binary search algorithm.
         if (modules == null)
         {
@@ -890,6 +1029,23 @@ public class FelixResolverState implements Resolver.ResolverState
         map.put(module.getSymbolicName(), modules);
     }
 
+    private static void unindexModule(Map map, IModule module)
+    {
+        IModule[] modules = (IModule[]) map.get(module.getSymbolicName());
+        if (modules != null)
+        {
+            modules = removeModuleFromArray(modules, module);
+            if (modules.length == 0)
+            {
+                map.remove(module.getSymbolicName());
+            }
+            else
+            {
+                map.put(module.getSymbolicName(), modules);
+            }
+        }
+    }
+
     private static IModule[] removeModuleFromArray(IModule[] modules, IModule m)
     {
         if (modules == null)
@@ -942,7 +1098,7 @@ public class FelixResolverState implements Resolver.ResolverState
         for (int i = 0; (caps != null) && (i < caps.length); i++)
         {
             if (caps[i].getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
-                caps[i].getProperties().get(ICapability.PACKAGE_PROPERTY).equals(pkgName))
+                ((Capability) caps[i]).getPackageName().equals(pkgName))
             {
                 return caps[i];
             }
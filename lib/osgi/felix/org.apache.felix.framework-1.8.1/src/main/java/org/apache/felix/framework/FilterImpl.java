@@ -20,7 +20,6 @@ package org.apache.felix.framework;
 
 import java.io.CharArrayReader;
 import java.io.IOException;
-import java.lang.ref.SoftReference;
 import java.util.*;
 
 import org.apache.felix.framework.util.StringMap;
@@ -35,10 +34,14 @@ import org.osgi.framework.*;
 **/
 public class FilterImpl implements Filter
 {
+    // Maps filter expression to a tuple of its parsed program and the
+    // matcher compiled from it.
     private static final WeakHashMap m_programCache = new WeakHashMap();
-    private final ThreadLocal m_cache = new ThreadLocal();
+    // Per-thread mapper, which is reused across matches.
+    private static final ThreadLocal m_mapperCache = new ThreadLocal();
     private final Logger m_logger;
     private final Object[] m_program;
+    private final Matcher m_matcher;
     private volatile String m_toString;
 
 // TODO: FilterImpl needs a logger, this is a hack for FrameworkUtil.
@@ -58,12 +61,12 @@ public class FilterImpl implements Filter
         {
             throw new NullPointerException("Filter cannot be null");
         }
-        Object[] program = null;
+        Object[] tuple = null;
         synchronized (m_programCache)
         {
-            program = (Object[]) m_programCache.get(expr);
+            tuple = (Object[]) m_programCache.get(expr);
         }
-        if (program == null)
+        if (tuple == null)
         {
             CharArrayReader car = new CharArrayReader(expr.toCharArray());
             LdapLexer lexer = new LdapLexer(car);
@@ -86,16 +89,18 @@ public class FilterImpl implements Filter
                 throw new InvalidSyntaxException(
                     ex.getMessage(), expr);
             }
-            program = parser.getProgram();
+            Object[] program = parser.getProgram();
+            tuple = new Object[] { program, Parser.compile(program) };
             synchronized (m_programCache)
             {
                 if (!m_programCache.containsKey(expr))
                 {
-                    m_programCache.put(expr, program);
+                    m_programCache.put(expr, tuple);
                 }
             }
         }
-        m_program = program;
+        m_program = (Object[]) tuple[0];
+        m_matcher = (Matcher) tuple[1];
     }
 
     /**
@@ -130,26 +135,16 @@ public class FilterImpl implements Filter
     private boolean match(Dictionary dict, ServiceReference ref, boolean caseSensitive)
         throws IllegalArgumentException
     {
-        SoftReference tupleRef = (SoftReference) m_cache.get();
-        Evaluator evaluator = null;
-        SimpleMapper mapper = null;
-        Object[] tuple = null;
-
-        if (tupleRef != null)
-        {
-            tuple = (Object[]) tupleRef.get();
-        }
-
-        if (tuple == null)
+        // Reuse this thread's mapper, unless it is already in use
+        // further up the call stack.
+        SimpleMapper mapper = (SimpleMapper) m_mapperCache.get();
+        if (mapper == null)
         {
-            evaluator = new Evaluator(m_program);
             mapper = new SimpleMapper();
         }
         else
         {
-            evaluator = (Evaluator) tuple[0];
-            mapper = (SimpleMapper) tuple[1];
-            m_cache.set(null);
+            m_mapperCache.set(null);
         }
 
         try
@@ -163,11 +158,7 @@ public class FilterImpl implements Filter
                 mapper.setSource(ref);
             }
 
-            return evaluator.evaluate(mapper);
-        }
-        catch (AttributeNotFoundException ex)
-        {
-            log(Logger.LOG_DEBUG, "FilterImpl: Attribute not found.", ex);
+            return m_matcher.match(mapper);
         }
         catch (EvaluationException ex)
         {
@@ -184,14 +175,7 @@ public class FilterImpl implements Filter
                 mapper.setSource(null);
             }
 
-            if (tuple == null)
-            {
-                m_cache.set(new SoftReference(new Object[] {evaluator, mapper}));
-            }
-            else
-            {
-                m_cache.set(tupleRef);
-            }
+            m_mapperCache.set(mapper);
         }
 
         return false;
@@ -231,6 +215,16 @@ public class FilterImpl implements Filter
         return match(dict, null, true);
     }
 
+    /**
+     * Returns the service interface name that a service must be registered
+     * under to match this filter, if the filter requires a single one.
+     * @return the required objectClass name or <tt>null</tt>.
+    **/
+    public String getObjectClass()
+    {
+        return m_matcher.getObjectClass();
+    }
+
     /**
      * Returns the <tt>Filter</tt> object's filter string.
      * @return Filter string.
@@ -48,6 +48,10 @@ class ServiceRegistrationImpl implements ServiceRegistration
     private ServiceReferenceImpl m_ref = null;
     // Flag indicating that we are unregistering.
     private boolean m_isUnregistering = false;
+    // Lock used to serialize calls out to the service factory.
+    private final Object m_factoryLock = new Object();
+    // Thread currently calling out to the service factory, if any.
+    private Thread m_factoryThread = null;
 
     public ServiceRegistrationImpl(
         ServiceRegistry registry, Bundle bundle,
@@ -82,6 +86,54 @@ class ServiceRegistrationImpl implements ServiceRegistration
         m_svcObj = null;
     }
 
+    protected synchronized boolean isServiceFactory()
+    {
+        return (m_factory != null);
+    }
+
+    /**
+     * Locks this registration for calling out to its service factory,
+     * waiting for any other thread currently holding the lock. This lock
+     * is not reentrant, since a service factory which gets or ungets its
+     * own service would otherwise recurse indefinitely.
+     * @param cycleMsg the message of the exception thrown on a cycle.
+     * @throws IllegalStateException if the current thread already holds
+     *         the lock.
+    **/
+    void lockFactory(String cycleMsg)
+    {
+        synchronized (m_factoryLock)
+        {
+            while (m_factoryThread != null)
+            {
+                // We don't allow cycles when we call out to the service factory.
+                if (m_factoryThread == Thread.currentThread())
+                {
+                    throw new IllegalStateException(cycleMsg);
+                }
+
+                // Otherwise, wait for it to be freed.
+                try
+                {
+                    m_factoryLock.wait();
+                }
+                catch (InterruptedException ex)
+                {
+                }
+            }
+            m_factoryThread = Thread.currentThread();
+        }
+    }
+
+    void unlockFactory()
+    {
+        synchronized (m_factoryLock)
+        {
+            m_factoryThread = null;
+            m_factoryLock.notifyAll();
+        }
+    }
+
     public ServiceReference getReference()
     {
         // Make sure registration is valid.
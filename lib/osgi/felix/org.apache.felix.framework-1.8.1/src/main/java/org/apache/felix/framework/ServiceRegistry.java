@@ -28,16 +28,18 @@ public class ServiceRegistry
 {
     private Logger m_logger = null;
     private long m_currentServiceId = 1L;
+    // The following maps are copy-on-write; they are only modified
+    // while holding the registry lock by replacing the map instance,
+    // which allows them to be read without holding the lock.
     // Maps bundle to an array of service registrations.
-    private Map m_serviceRegsMap = new HashMap();
-    // Maps registration to thread to keep track when a
-    // registration is in use, which will cause other
-    // threads to wait.
-    private Map m_lockedRegsMap = new HashMap();
+    private volatile Map m_serviceRegsMap = new HashMap();
+    // Maps interface name to an array of service registrations
+    // providing it; this is a secondary index of the above map.
+    private volatile Map m_classToRegsMap = new HashMap();
     // Maps bundle to an array of usage counts.
-    private Map m_inUseMap = new HashMap();
+    private volatile Map m_inUseMap = new HashMap();
 
-    private ServiceListener m_serviceListener = null;
+    private volatile ServiceListener m_serviceListener = null;
 
     private final Object m_eventHookLock = new Object();
     private Object[] m_eventHooks = new Object[0];
@@ -51,7 +53,7 @@ public class ServiceRegistry
         m_logger = logger;
     }
 
-    public synchronized ServiceReference[] getRegisteredServices(Bundle bundle)
+    public ServiceReference[] getRegisteredServices(Bundle bundle)
     {
         ServiceRegistration[] regs = (ServiceRegistration[]) m_serviceRegsMap.get(bundle);
         if (regs != null)
@@ -81,7 +83,11 @@ public class ServiceRegistry
                 this, bundle, classNames, new Long(m_currentServiceId++), svcObj, dict);
             // Get the bundles current registered services.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_serviceRegsMap.get(bundle);
-            m_serviceRegsMap.put(bundle, addServiceRegistration(regs, reg));
+            Map serviceRegsMap = new HashMap(m_serviceRegsMap);
+            serviceRegsMap.put(bundle, addServiceRegistration(regs, reg));
+            m_serviceRegsMap = serviceRegsMap;
+            // Index the registration by each of its interface names.
+            addToClassIndex(classNames, reg);
         }
         fireServiceChanged(new ServiceEvent(ServiceEvent.REGISTERED, reg.getReference()));
         return reg;
@@ -94,15 +100,21 @@ public class ServiceRegistry
 
         synchronized (this)
         {
-            // Note that we don't lock the service registration here using
-            // the m_lockedRegsMap because we want to allow bundles to get
-            // the service during the unregistration process. However, since
-            // we do remove the registration from the service registry, no
-            // new bundles will be able to look up the service.
+            // Note that we don't lock the service registration here
+            // because we want to allow bundles to get the service during
+            // the unregistration process. However, since we do remove the
+            // registration from the service registry, no new bundles will
+            // be able to look up the service.
 
             // Now remove the registered service.
             ServiceRegistration[] regs = (ServiceRegistration[]) m_serviceRegsMap.get(bundle);
-            m_serviceRegsMap.put(bundle, removeServiceRegistration(regs, reg));
+            Map serviceRegsMap = new HashMap(m_serviceRegsMap);
+            serviceRegsMap.put(bundle, removeServiceRegistration(regs, reg));
+            m_serviceRegsMap = serviceRegsMap;
+            // Remove the registration from the interface name index.
+            removeFromClassIndex(
+                (String[]) ((ServiceRegistrationImpl) reg).getProperty(FelixConstants.OBJECTCLASS),
+                reg);
         }
 
         // Fire the service event which gives all client bundles the
@@ -110,15 +122,35 @@ public class ServiceRegistry
         fireServiceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, reg.getReference()));
 
         // Now forcibly unget the service object for all stubborn clients.
+        // This is not done while holding the registry lock, since ungetting
+        // may need to wait for the registration's service factory lock.
+        ServiceReference ref = reg.getReference();
+        Bundle[] clients = getUsingBundles(ref);
+        for (int i = 0; (clients != null) && (i < clients.length); i++)
+        {
+            while (ungetService(clients[i], ref))
+                ; // Keep removing until it is no longer possible
+        }
+        ((ServiceRegistrationImpl) reg).invalidate();
+
+        // A client may have acquired the service concurrently with the above
+        // loop; since usage counts are only added for valid registrations
+        // while holding the registry lock, flushing any remaining ones after
+        // invalidation guarantees that no usage count survives.
+        UsageCount[][] flushed;
         synchronized (this)
         {
-            Bundle[] clients = getUsingBundles(reg.getReference());
-            for (int i = 0; (clients != null) && (i < clients.length); i++)
+            clients = getUsingBundles(ref);
+            flushed = new UsageCount[(clients == null) ? 0 : clients.length][];
+            for (int i = 0; i < flushed.length; i++)
             {
-                while (ungetService(clients[i], reg.getReference()))
-                    ; // Keep removing until it is no longer possible
+                flushed[i] = flushUsageCount(clients[i], ref);
             }
-            ((ServiceRegistrationImpl) reg).invalidate();
+        }
+        for (int i = 0; i < flushed.length; i++)
+        {
+            releaseFlushedUsageCounts(
+                (ServiceRegistrationImpl) reg, clients[i], flushed[i], false);
         }
     }
 
@@ -155,75 +187,76 @@ public class ServiceRegistry
         // Now remove the bundle itself.
         synchronized (this)
         {
-            m_serviceRegsMap.remove(bundle);
+            Map serviceRegsMap = new HashMap(m_serviceRegsMap);
+            serviceRegsMap.remove(bundle);
+            m_serviceRegsMap = serviceRegsMap;
         }
     }
 
-    public synchronized List getServiceReferences(String className, Filter filter)
+    public List getServiceReferences(String className, Filter filter)
     {
         // Create a filtered list of service references.
         List list = new ArrayList();
 
-        // Iterator over all service registrations.
-        for (Iterator i = m_serviceRegsMap.entrySet().iterator(); i.hasNext(); )
+        // If className is not null, then only the registrations
+        // indexed under that interface name need to be examined,
+        // since they all have a matching objectClass property.
+        if (className != null)
         {
-            Map.Entry entry = (Map.Entry) i.next();
-            ServiceRegistration[] regs = (ServiceRegistration[]) entry.getValue();
-
-            for (int regIdx = 0;
-                (regs != null) && (regIdx < regs.length);
-                regIdx++)
+            ServiceRegistration[] regs =
+                (ServiceRegistration[]) m_classToRegsMap.get(className);
+            addMatchingReferences(list, regs, filter);
+        }
+        // If className is null, then look at filter only, which
+        // requires iterating over all service registrations.
+        else
+        {
+            for (Iterator i = m_serviceRegsMap.values().iterator(); i.hasNext(); )
             {
-                // Determine if the registered services matches
-                // the search criteria.
-                boolean matched = false;
-
-                // If className is null, then look at filter only.
-                if ((className == null) &&
-                    ((filter == null) || filter.match(regs[regIdx].getReference())))
-                {
-                    matched = true;
-                }
-                // If className is not null, then first match the
-                // objectClass property before looking at the
-                // filter.
-                else if (className != null)
-                {
-                    String[] objectClass = (String[])
-                        ((ServiceRegistrationImpl) regs[regIdx]).getProperty(FelixConstants.OBJECTCLASS);
-                    for (int classIdx = 0;
-                        classIdx < objectClass.length;
-                        classIdx++)
-                    {
-                        if (objectClass[classIdx].equals(className) &&
-                            ((filter == null) || filter.match(regs[regIdx].getReference())))
-                        {
-                            matched = true;
-                            break;
-                        }
-                    }
-                }
-
-                // Add reference if it was a match.
-                if (matched)
-                {
-                    list.add(regs[regIdx].getReference());
-                }
+                addMatchingReferences(list, (ServiceRegistration[]) i.next(), filter);
             }
         }
 
         return list;
     }
 
-    public synchronized ServiceReference[] getServicesInUse(Bundle bundle)
+    private static void addMatchingReferences(
+        List list, ServiceRegistration[] regs, Filter filter)
+    {
+        for (int regIdx = 0; (regs != null) && (regIdx < regs.length); regIdx++)
+        {
+            // Add reference if it matches the filter.
+            if ((filter == null) || filter.match(regs[regIdx].getReference()))
+            {
+                list.add(regs[regIdx].getReference());
+            }
+        }
+    }
+
+    public ServiceReference[] getServicesInUse(Bundle bundle)
     {
         UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
         if (usages != null)
         {
+            // Skip usage counts that were released but not flushed yet.
+            int count = 0;
             ServiceReference[] refs = new ServiceReference[usages.length];
-            for (int i = 0; i < refs.length; i++)
+            for (int i = 0; i < usages.length; i++)
             {
-                refs[i] = usages[i].m_ref;
+                if (usages[i].getCount() > 0)
+                {
+                    refs[count++] = usages[i].m_ref;
+                }
+            }
+            if (count == 0)
+            {
+                return null;
+            }
+            else if (count < refs.length)
+            {
+                ServiceReference[] trimmed = new ServiceReference[count];
+                System.arraycopy(refs, 0, trimmed, 0, count);
+                refs = trimmed;
             }
             return refs;
         }
@@ -232,98 +265,86 @@ public class ServiceRegistry
 
     public Object getService(Bundle bundle, ServiceReference ref)
     {
-        UsageCount usage = null;
-        Object svcObj = null;
-
         // Get the service registration.
         ServiceRegistrationImpl reg = ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getServiceRegistration();
 
-        synchronized (this)
+        // Make sure the service registration is still valid.
+        if (!reg.isValid())
         {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
+            // If the service registration is not valid, then this means
+            // that the service provider unregistered the service. The spec
+            // says that calls to get an unregistered service should always
+            // return null (assumption: even if it is currently cached
+            // by the bundle). So in this case, flush the service reference
+            // from the cache and return null.
+            UsageCount[] flushed;
+            synchronized (this)
             {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
-                {
-                    throw new IllegalStateException(
-                        "ServiceFactory.getService() resulted in a cycle.");
-                }
-
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ex)
-                {
-                }
+                flushed = flushUsageCount(bundle, ref);
             }
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
+            // A service factory still gets to release the service objects
+            // it created for the bundle.
+            releaseFlushedUsageCounts(reg, bundle, flushed, false);
+            return null;
+        }
 
-            // Make sure the service registration is still valid.
-            if (!reg.isValid())
-            {
-                // If the service registration is not valid, then this means
-                // that the service provider unregistered the service. The spec
-                // says that calls to get an unregistered service should always
-                // return null (assumption: even if it is currently cached
-                // by the bundle). So in this case, flush the service reference
-                // from the cache and return null.
-                flushUsageCount(bundle, ref);
-
-                // It is not necessary to unget the service object from
-                // the providing bundle, since the associated service is
-                // unregistered and hence not in the list of registered services
-                // of the providing bundle. This is precisely why the service
-                // registration was not found above in the first place.
-            }
-            else
-            {
-                // Get the usage count, if any.
-                usage = getUsageCount(bundle, ref);
+        // If the service object is cached, then increase the usage
+        // count and return the cached service object; this does not
+        // require the registry lock.
+        UsageCount usage = getUsageCount(bundle, ref);
+        if ((usage != null) && usage.increment())
+        {
+            return usage.m_svcObj;
+        }
 
-                // If the service object is cached, then increase the usage
-                // count and return the cached service object.
-                if (usage != null)
-                {
-                    usage.m_count++;
-                    svcObj = usage.m_svcObj;
-                }
-            }
+        // Otherwise, we need to create the service object. Only calls out
+        // to a service factory need to be serialized, which is done with
+        // a lock on the registration itself rather than the registry.
+        boolean isFactory = reg.isServiceFactory();
+        if (isFactory)
+        {
+            reg.lockFactory("ServiceFactory.getService() resulted in a cycle.");
         }
 
-        // If we have a valid registration, but no usage count, that means we
-        // don't have a cached service object, so we need to create one now
-        // without holding the lock, since we will potentially call out to a
-        // service factory.
+        Object svcObj = null;
         try
         {
-            if (reg.isValid() && (usage == null))
+            // Another thread may have cached the service object while
+            // we were waiting for the lock, so check again.
+            usage = getUsageCount(bundle, ref);
+            if ((usage != null) && usage.increment())
             {
-                // Get service object from service registration.
-                svcObj = reg.getService(bundle);
+                return usage.m_svcObj;
+            }
 
-                // Cache the service object.
-                if (svcObj != null)
+            // Get service object from service registration.
+            svcObj = reg.getService(bundle);
+
+            // Cache the service object.
+            if (svcObj != null)
+            {
+                synchronized (this)
                 {
-                    synchronized (this)
+                    // Unregistration can happen concurrently, so we need
+                    // to double-check that we are still valid.
+                    if (!reg.isValid())
+                    {
+                        // The service must have been unregistered in the
+                        // middle of our get operation, so null it.
+                        svcObj = null;
+                    }
+                    // Without a service factory, concurrent threads may
+                    // race to cache the service object, so reuse the
+                    // winning usage count if there is one.
+                    else if (((usage = getUsageCount(bundle, ref)) != null)
+                        && usage.increment())
+                    {
+                        svcObj = usage.m_svcObj;
+                    }
+                    else
                     {
-                        // Unregistration can happen concurrently, so we need
-                        // to double-check that we are still valid.
-                        if (reg.isValid())
-                        {
-                            addUsageCount(bundle, ref, svcObj);
-                        }
-                        else
-                        {
-                            // The service must have been unregistered in the
-                            // middle of our get operation, so null it.
-                            svcObj = null;
-                        }
+                        addUsageCount(bundle, ref, svcObj);
                     }
                 }
             }
@@ -332,10 +353,9 @@ public class ServiceRegistry
         {
             // Finally, unlock the service registration so that any threads
             // waiting for it can continue.
-            synchronized (this)
+            if (isFactory)
             {
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                reg.unlockFactory();
             }
         }
 
@@ -344,93 +364,75 @@ public class ServiceRegistry
 
     public boolean ungetService(Bundle bundle, ServiceReference ref)
     {
-        UsageCount usage = null;
         ServiceRegistrationImpl reg = ((ServiceRegistrationImpl.ServiceReferenceImpl) ref).getServiceRegistration();
 
-        synchronized (this)
+        // If there is no cached services, then just return immediately.
+        UsageCount usage = getUsageCount(bundle, ref);
+        if (usage == null)
         {
-            // First make sure that no existing operation is currently
-            // being performed by another thread on the service registration.
-            for (Object o = m_lockedRegsMap.get(reg); (o != null); o = m_lockedRegsMap.get(reg))
-            {
-                // We don't allow cycles when we call out to the service factory.
-                if (o.equals(Thread.currentThread()))
-                {
-                    throw new IllegalStateException(
-                        "ServiceFactory.ungetService() resulted in a cycle.");
-                }
-
-                // Otherwise, wait for it to be freed.
-                try
-                {
-                    wait();
-                }
-                catch (InterruptedException ex)
-                {
-                }
-            }
-
-            // Get the usage count.
-            usage = getUsageCount(bundle, ref);
-            // If there is no cached services, then just return immediately.
-            if (usage == null)
-            {
-                return false;
-            }
+            return false;
+        }
 
-            // Lock the service registration.
-            m_lockedRegsMap.put(reg, Thread.currentThread());
+        // Lock the service registration if it has a service factory, so that
+        // releasing the last usage and calling out to the factory cannot
+        // interleave with another thread getting the service object.
+        boolean isFactory = reg.isServiceFactory();
+        if (isFactory)
+        {
+            reg.lockFactory("ServiceFactory.ungetService() resulted in a cycle.");
+        }
 
+        try
+        {
             // Make sure the service registration is still valid.
             if (!reg.isValid())
             {
                 // If the service registration is not valid, then this means
                 // that the service provider unregistered the service, so just
-                // flush the usage count and we are done.
-                flushUsageCount(bundle, ref);
-            }
-            else if (reg.isValid())
-            {
-                // Decrement usage count.
-                usage.m_count--;
+                // flush the usage count and we are done, after letting a
+                // service factory release its service object.
+                UsageCount[] flushed;
+                synchronized (this)
+                {
+                    flushed = flushUsageCount(bundle, ref);
+                }
+                releaseFlushedUsageCounts(reg, bundle, flushed, true);
+                return false;
             }
 
-            // If the usage count has reached zero, the flush it.
-            if (usage.m_count == 0)
+            // Decrement usage count; if the usage count has reached zero,
+            // then flush it.
+            int count = usage.decrement();
+            if (count < 0)
             {
-                flushUsageCount(bundle, ref);
+                // Another thread released the last usage before us.
+                return false;
             }
-        }
-
-        // If usage count goes to zero, then unget the service
-        // from the registration; we do this outside the lock
-        // since this might call out to the service factory.
-        try
-        {
-            if (usage.m_count == 0)
+            else if (count == 0)
             {
-                // Remove reference from usages array.
-                ((ServiceRegistrationImpl.ServiceReferenceImpl) ref)
-                    .getServiceRegistration().ungetService(bundle, usage.m_svcObj);
-                usage.m_svcObj = null;
-            }
+                synchronized (this)
+                {
+                    flushUsageCount(bundle, ref, usage);
+                }
 
+                // Unget the service from the registration; we do this
+                // outside the registry lock since this might call out
+                // to the service factory.
+                reg.ungetService(bundle, usage.m_svcObj);
+            }
+            return (count > 0);
         }
         finally
         {
             // Finally, unlock the service registration so that any threads
             // waiting for it can continue.
-            synchronized (this)
+            if (isFactory)
             {
-                m_lockedRegsMap.remove(reg);
-                notifyAll();
+                reg.unlockFactory();
             }
         }
-
-        return (usage.m_count > 0);
     }
 
-
     /**
      * This is a utility method to release all services being
      * used by the specified bundle.
@@ -466,7 +468,7 @@ public class ServiceRegistry
         }
     }
 
-    public synchronized Bundle[] getUsingBundles(ServiceReference ref)
+    public Bundle[] getUsingBundles(ServiceReference ref)
     {
         Bundle[] bundles = null;
         for (Iterator iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
@@ -476,7 +478,8 @@ public class ServiceRegistry
             UsageCount[] usages = (UsageCount[]) entry.getValue();
             for (int useIdx = 0; useIdx < usages.length; useIdx++)
             {
-                if (usages[useIdx].m_ref.equals(ref))
+                // Skip usage counts that were released but not flushed yet.
+                if (usages[useIdx].m_ref.equals(ref) && (usages[useIdx].getCount() > 0))
                 {
                     // Add the bundle to the array to be returned.
                     if (bundles == null)
@@ -498,6 +501,8 @@ public class ServiceRegistry
 
     public void servicePropertiesModified(ServiceRegistration reg)
     {
+        // The objectClass property cannot be modified, so there is
+        // no need to update the interface name index here.
         fireServiceChanged(new ServiceEvent(ServiceEvent.MODIFIED, reg.getReference()));
     }
 
@@ -552,6 +557,56 @@ public class ServiceRegistry
         return regs;
     }
 
+    /**
+     * Adds the specified registration to the interface name index under
+     * each of the specified class names. Duplicate class names are only
+     * indexed once. This method must be called while holding the
+     * registry lock.
+     * @param classNames the interface names of the registration.
+     * @param reg the registration to index.
+    **/
+    private void addToClassIndex(String[] classNames, ServiceRegistration reg)
+    {
+        Map classToRegsMap = new HashMap(m_classToRegsMap);
+        for (int i = 0; (classNames != null) && (i < classNames.length); i++)
+        {
+            ServiceRegistration[] regs =
+                (ServiceRegistration[]) classToRegsMap.get(classNames[i]);
+            if ((regs == null) || (regs[regs.length - 1] != reg))
+            {
+                classToRegsMap.put(classNames[i], addServiceRegistration(regs, reg));
+            }
+        }
+        m_classToRegsMap = classToRegsMap;
+    }
+
+    /**
+     * Removes the specified registration from the interface name index
+     * under each of the specified class names, dropping index entries
+     * that become empty. This method must be called while holding the
+     * registry lock.
+     * @param classNames the interface names of the registration.
+     * @param reg the registration to remove.
+    **/
+    private void removeFromClassIndex(String[] classNames, ServiceRegistration reg)
+    {
+        Map classToRegsMap = new HashMap(m_classToRegsMap);
+        for (int i = 0; (classNames != null) && (i < classNames.length); i++)
+        {
+            ServiceRegistration[] regs = removeServiceRegistration(
+                (ServiceRegistration[]) classToRegsMap.get(classNames[i]), reg);
+            if ((regs == null) || (regs.length == 0))
+            {
+                classToRegsMap.remove(classNames[i]);
+            }
+            else
+            {
+                classToRegsMap.put(classNames[i], regs);
+            }
+        }
+        m_classToRegsMap = classToRegsMap;
+    }
+
     public synchronized void addServiceListener(ServiceListener l)
     {
         m_serviceListener = ServiceListenerMulticaster.add(m_serviceListener, l);
@@ -565,11 +620,7 @@ public class ServiceRegistry
     protected void fireServiceChanged(ServiceEvent event)
     {
         // Grab a copy of the listener list.
-        ServiceListener listener;
-        synchronized (this)
-        {
-            listener = m_serviceListener;
-        }
+        ServiceListener listener = m_serviceListener;
         // If not null, then dispatch event.
         if (listener != null)
         {
@@ -640,7 +691,9 @@ public class ServiceRegistry
         UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
         for (int i = 0; (usages != null) && (i < usages.length); i++)
         {
-            if (usages[i].m_ref.equals(ref))
+            // Skip usage counts released by a concurrent unget that has
+            // not flushed them yet, since they can no longer be used.
+            if (usages[i].m_ref.equals(ref) && (usages[i].getCount() > 0))
             {
                 return usages[i];
             }
@@ -662,10 +715,7 @@ public class ServiceRegistry
     {
         UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
 
-        UsageCount usage = new UsageCount();
-        usage.m_ref = ref;
-        usage.m_svcObj = svcObj;
-        usage.m_count++;
+        UsageCount usage = new UsageCount(ref, svcObj);
 
         if (usages == null)
         {
@@ -679,55 +729,124 @@ public class ServiceRegistry
             usages = newUsages;
         }
 
-        m_inUseMap.put(bundle, usages);
+        Map inUseMap = new HashMap(m_inUseMap);
+        inUseMap.put(bundle, usages);
+        m_inUseMap = inUseMap;
     }
 
     /**
-     * Utility method to flush the specified bundle's usage count for the
+     * Utility method to flush the specified bundle's usage counts for the
      * specified service reference. This should be called to completely
-     * remove the associated usage count object for the specified service
+     * remove the associated usage count objects for the specified service
      * reference. If the goal is to simply decrement the usage, then get
      * the usage count and decrement its counter. This method will also
      * remove the specified bundle from the "in use" map if it has no more
-     * usage counts after removing the usage count for the specified service
+     * usage counts after removing the usage counts for the specified service
      * reference.
      * @param bundle The bundle whose usage count should be removed.
-     * @param ref The service reference whose usage count should be removed.
+     * @param ref The service reference whose usage counts should be removed.
+     * @return The removed usage counts or null if there were none.
     **/
-    private void flushUsageCount(Bundle bundle, ServiceReference ref)
+    private UsageCount[] flushUsageCount(Bundle bundle, ServiceReference ref)
+    {
+        return flushUsageCount(bundle, ref, null);
+    }
+
+    /**
+     * Utility method to flush the specified usage count of the specified
+     * bundle, or all of its usage counts for the specified service reference
+     * if the usage count is null. A released usage count is removed by
+     * identity, since a concurrent get may already have added a new usage
+     * count for the same service reference.
+     * @param bundle The bundle whose usage count should be removed.
+     * @param ref The service reference whose usage counts should be removed.
+     * @param usage The usage count to remove or null to remove them all.
+     * @return The removed usage counts or null if there were none.
+    **/
+    private UsageCount[] flushUsageCount(Bundle bundle, ServiceReference ref, UsageCount usage)
     {
         UsageCount[] usages = (UsageCount[]) m_inUseMap.get(bundle);
-        for (int i = 0; (usages != null) && (i < usages.length); i++)
+        if (usages == null)
         {
-            if (usages[i].m_ref.equals(ref))
+            return null;
+        }
+
+        int count = 0;
+        UsageCount[] newUsages = new UsageCount[usages.length];
+        UsageCount[] removed = new UsageCount[usages.length];
+        for (int i = 0; i < usages.length; i++)
+        {
+            if ((usage != null) ? (usages[i] != usage) : !usages[i].m_ref.equals(ref))
             {
-                // If this is the only usage, then point to empty list.
-                if ((usages.length - 1) == 0)
-                {
-                    usages = null;
-                }
-                // Otherwise, we need to do some array copying.
-                else
-                {
-                    UsageCount[] newUsages = new UsageCount[usages.length - 1];
-                    System.arraycopy(usages, 0, newUsages, 0, i);
-                    if (i < newUsages.length)
-                    {
-                        System.arraycopy(
-                            usages, i + 1, newUsages, i, newUsages.length - i);
-                    }
-                    usages = newUsages;
-                }
+                newUsages[count++] = usages[i];
+            }
+            else
+            {
+                removed[i - count] = usages[i];
             }
         }
 
-        if (usages != null)
+        if (count == usages.length)
         {
-            m_inUseMap.put(bundle, usages);
+            return null;
+        }
+
+        Map inUseMap = new HashMap(m_inUseMap);
+        if (count > 0)
+        {
+            UsageCount[] trimmed = new UsageCount[count];
+            System.arraycopy(newUsages, 0, trimmed, 0, count);
+            inUseMap.put(bundle, trimmed);
         }
         else
         {
-            m_inUseMap.remove(bundle);
+            inUseMap.remove(bundle);
+        }
+        m_inUseMap = inUseMap;
+
+        UsageCount[] trimmed = new UsageCount[usages.length - count];
+        System.arraycopy(removed, 0, trimmed, 0, trimmed.length);
+        return trimmed;
+    }
+
+    /**
+     * Utility method to let the service factory of an unregistered service
+     * release the service objects of the specified flushed usage counts.
+     * Usage counts already released by a concurrent unget are skipped, since
+     * that unget releases their service object itself.
+     * @param reg The registration of the flushed usage counts.
+     * @param bundle The bundle whose usage counts were flushed.
+     * @param usages The flushed usage counts or null.
+     * @param isLocked Whether the caller holds the registration's factory lock.
+    **/
+    private void releaseFlushedUsageCounts(
+        ServiceRegistrationImpl reg, Bundle bundle, UsageCount[] usages, boolean isLocked)
+    {
+        if ((usages == null) || !reg.isServiceFactory())
+        {
+            return;
+        }
+
+        if (!isLocked)
+        {
+            reg.lockFactory("ServiceFactory.ungetService() resulted in a cycle.");
+        }
+        try
+        {
+            for (int i = 0; i < usages.length; i++)
+            {
+                if (usages[i].release())
+                {
+                    reg.ungetService(bundle, usages[i].m_svcObj);
+                }
+            }
+        }
+        finally
+        {
+            if (!isLocked)
+            {
+                reg.unlockFactory();
+            }
         }
     }
 
@@ -868,10 +987,53 @@ public class ServiceRegistry
         }
     }
 
+    /**
+     * A usage count is shared between the threads of the bundle using the
+     * service; its counter is guarded by the usage count itself so that the
+     * registry lock does not need to be held to acquire a cached service.
+     * Once its counter drops to zero it is dead and can no longer be
+     * incremented, since it is about to be flushed from the registry.
+    **/
     private static class UsageCount
     {
-        public int m_count = 0;
-        public ServiceReference m_ref = null;
-        public Object m_svcObj = null;
+        private int m_count = 1;
+        public final ServiceReference m_ref;
+        public final Object m_svcObj;
+
+        public UsageCount(ServiceReference ref, Object svcObj)
+        {
+            m_ref = ref;
+            m_svcObj = svcObj;
+        }
+
+        public synchronized boolean increment()
+        {
+            if (m_count > 0)
+            {
+                m_count++;
+                return true;
+            }
+            return false;
+        }
+
+        public synchronized int decrement()
+        {
+            return (m_count > 0) ? --m_count : -1;
+        }
+
+        public synchronized int getCount()
+        {
+            return m_count;
+        }
+
+        public synchronized boolean release()
+        {
+            if (m_count > 0)
+            {
+                m_count = 0;
+                return true;
+            }
+            return false;
+        }
     }
 }
\ No newline at end of file
@@ -19,6 +19,7 @@
 package org.apache.felix.framework.cache;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import org.apache.felix.framework.Logger;
@@ -144,7 +145,7 @@ public class BundleCache
         return -1;
     }
 
-    public synchronized BundleArchive create(
+    public BundleArchive create(
         long id, String location, InputStream is)
         throws Exception
     {
@@ -154,13 +155,19 @@ public class BundleCache
 
         try
         {
-            // Create the archive and add it to the list of archives.
+            // Create the archive outside of the lock, since this copies
+            // the bundle into the cache and the archive directory is
+            // unique to the bundle identifier, so several bundles can be
+            // cached concurrently. Then add it to the list of archives.
             BundleArchive ba =
                 new BundleArchive(m_logger, archiveRootDir, id, location, is);
-            BundleArchive[] tmp = new BundleArchive[m_archives.length + 1];
-            System.arraycopy(m_archives, 0, tmp, 0, m_archives.length);
-            tmp[m_archives.length] = ba;
-            m_archives = tmp;
+            synchronized (this)
+            {
+                BundleArchive[] tmp = new BundleArchive[m_archives.length + 1];
+                System.arraycopy(m_archives, 0, tmp, 0, m_archives.length);
+                tmp[m_archives.length] = ba;
+                m_archives = tmp;
+            }
             return ba;
         }
         catch (Exception ex)
@@ -246,7 +253,10 @@ public class BundleCache
     //
 
     /**
-     * This method copies an input stream to the specified file.
+     * This method copies an input stream to the specified file. If the
+     * input stream reads from a file, the bytes are transferred between
+     * the file channels, which lets the operating system copy them without
+     * passing them through the Java heap.
      * @param is the input stream to copy.
      * @param outputFile the file to which the input stream should be copied.
     **/
@@ -258,6 +268,19 @@ public class BundleCache
         try
         {
             os = getSecureAction().getFileOutputStream(outputFile);
+            if ((is instanceof FileInputStream) && (os instanceof FileOutputStream))
+            {
+                FileChannel in = ((FileInputStream) is).getChannel();
+                FileChannel out = ((FileOutputStream) os).getChannel();
+                long pos = in.position();
+                long size = in.size();
+                // Channels may transfer fewer bytes than requested.
+                while (pos < size)
+                {
+                    pos += in.transferTo(pos, size - pos, out);
+                }
+                return;
+            }
             os = new BufferedOutputStream(os, BUFSIZE);
             byte[] b = new byte[BUFSIZE];
             int len = 0;
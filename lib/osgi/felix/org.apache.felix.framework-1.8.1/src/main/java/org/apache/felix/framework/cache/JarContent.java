@@ -44,6 +44,10 @@ public class JarContent implements IContent
     private JarFileX m_jarFile = null;
     // TODO: CACHE - It would be nice to eventually remove this legacy flag.
     private final boolean m_legacy;
+    // The file persisting the index of the JAR file, if any.
+    private final File m_indexFile;
+    private JarIndex m_index = null;
+    private boolean m_indexLoaded = false;
 
     public JarContent(Logger logger, Object revisionLock, File rootDir, File file)
     {
@@ -52,16 +56,19 @@ public class JarContent implements IContent
         m_rootDir = rootDir;
         m_file = file;
         m_legacy = false;
+        m_indexFile = null;
     }
 
     // This is only used by JarRevision.
-    public JarContent(Logger logger, Object revisionLock, File rootDir, File file, boolean legacy)
+    public JarContent(Logger logger, Object revisionLock, File rootDir, File file,
+        boolean legacy, File indexFile)
     {
         m_logger = logger;
         m_revisionLock = revisionLock;
         m_rootDir = rootDir;
         m_file = file;
         m_legacy = legacy;
+        m_indexFile = indexFile;
     }
 
     protected void finalize()
@@ -96,29 +103,32 @@ public class JarContent implements IContent
         }
 
         m_jarFile = null;
+
+        if (m_index != null)
+        {
+            m_index.close();
+        }
     }
 
-    public synchronized boolean hasEntry(String name) throws IllegalStateException
+    public boolean hasEntry(String name) throws IllegalStateException
     {
+        // Use the index if there is one.
+        JarIndex index = getIndex();
+        if (index != null)
+        {
+            return index.hasEntry(name);
+        }
+
         // Open JAR file if not already opened.
-        if (m_jarFile == null)
+        JarFileX jarFile = getJarFile();
+        if (jarFile == null)
         {
-            try
-            {
-                openJarFile();
-            }
-            catch (IOException ex)
-            {
-                m_logger.log(
-                    Logger.LOG_ERROR,
-                    "JarContent: Unable to open JAR file.", ex);
-                return false;
-            }
+            return false;
         }
 
         try
         {
-            ZipEntry ze = m_jarFile.getEntry(name);
+            ZipEntry ze = jarFile.getEntry(name);
             return ze != null;
         }
         catch (Exception ex)
@@ -155,40 +165,73 @@ public class JarContent implements IContent
         return (e.hasMoreElements()) ? e : null;
     }
 
-    public synchronized byte[] getEntryAsBytes(String name) throws IllegalStateException
+    public byte[] getEntryAsBytes(String name) throws IllegalStateException
     {
-        // Open JAR file if not already opened.
-        if (m_jarFile == null)
+        // Read the entry through the index if possible, which does not
+        // require opening the JAR file.
+        JarIndex index = getIndex();
+        if ((index != null) && index.canReadEntry(name))
         {
             try
             {
-                openJarFile();
+                return index.getEntryAsBytes(name);
             }
-            catch (IOException ex)
+            catch (Exception ex)
             {
                 m_logger.log(
-                    Logger.LOG_ERROR,
-                    "JarContent: Unable to open JAR file.", ex);
-                return null;
+                    Logger.LOG_WARNING,
+                    "JarContent: Unable to read bytes from index.", ex);
             }
         }
 
+        // Open JAR file if not already opened.
+        JarFileX jarFile = getJarFile();
+        if (jarFile == null)
+        {
+            return null;
+        }
+
         // Get the embedded resource.
         InputStream is = null;
         ByteArrayOutputStream baos = null;
 
         try
         {
-            ZipEntry ze = m_jarFile.getEntry(name);
+            ZipEntry ze = jarFile.getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_jarFile.getInputStream(ze);
+            is = jarFile.getInputStream(ze);
             if (is == null)
             {
                 return null;
             }
+
+            // The central directory records the uncompressed size of the
+            // entry, so read it straight into an array of the exact size
+            // rather than copying it through a buffer and a byte array
+            // output stream.
+            long size = ze.getSize();
+            if ((size >= 0) && (size <= Integer.MAX_VALUE))
+            {
+                byte[] bytes = new byte[(int) size];
+                int off = 0;
+                int n = 0;
+                while ((off < bytes.length)
+                    && ((n = is.read(bytes, off, bytes.length - off)) >= 0))
+                {
+                    off += n;
+                }
+                if (off < bytes.length)
+                {
+                    throw new IOException(
+                        "Entry " + name + " is shorter than its recorded size.");
+                }
+                return bytes;
+            }
+
+            // Otherwise, fall back to reading until the end of the entry.
             baos = new ByteArrayOutputStream(BUFSIZE);
             byte[] buf = new byte[BUFSIZE];
             int n = 0;
@@ -225,23 +268,21 @@ public class JarContent implements IContent
         }
     }
 
-    public synchronized InputStream getEntryAsStream(String name)
+    public InputStream getEntryAsStream(String name)
         throws IllegalStateException, IOException
     {
+        // Avoid opening the JAR file for entries it does not contain.
+        JarIndex index = getIndex();
+        if ((index != null) && !index.hasEntry(name))
+        {
+            return null;
+        }
+
         // Open JAR file if not already opened.
-        if (m_jarFile == null)
+        JarFileX jarFile = getJarFile();
+        if (jarFile == null)
         {
-            try
-            {
-                openJarFile();
-            }
-            catch (IOException ex)
-            {
-                m_logger.log(
-                    Logger.LOG_ERROR,
-                    "JarContent: Unable to open JAR file.", ex);
-                return null;
-            }
+            return null;
         }
 
         // Get the embedded resource.
@@ -249,12 +290,12 @@ public class JarContent implements IContent
 
         try
         {
-            ZipEntry ze = m_jarFile.getEntry(name);
+            ZipEntry ze = jarFile.getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_jarFile.getInputStream(ze);
+            is = jarFile.getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -291,7 +332,8 @@ public class JarContent implements IContent
         // just return it immediately.
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
-            return new JarContent(m_logger, m_revisionLock, m_rootDir, m_file, m_legacy);
+            return new JarContent(
+                m_logger, m_revisionLock, m_rootDir, m_file, m_legacy, m_indexFile);
         }
 
         // Remove any leading slash.
@@ -464,6 +506,48 @@ public class JarContent implements IContent
         return m_file;
     }
 
+    private JarIndex getIndex()
+    {
+        if (m_indexFile == null)
+        {
+            return null;
+        }
+
+        synchronized (this)
+        {
+            if (!m_indexLoaded)
+            {
+                // The index file is shared by all contents of the revision.
+                synchronized (m_revisionLock)
+                {
+                    m_index = JarIndex.getIndex(m_logger, m_indexFile, m_file);
+                }
+                m_indexLoaded = true;
+            }
+            return m_index;
+        }
+    }
+
+    // Only opening the JAR file requires the content lock, entries are
+    // read without holding it since the JAR file supports concurrent reads.
+    private synchronized JarFileX getJarFile()
+    {
+        if (m_jarFile == null)
+        {
+            try
+            {
+                openJarFile();
+            }
+            catch (IOException ex)
+            {
+                m_logger.log(
+                    Logger.LOG_ERROR,
+                    "JarContent: Unable to open JAR file.", ex);
+            }
+        }
+        return m_jarFile;
+    }
+
     private void openJarFile() throws IOException
     {
         if (m_jarFile == null)
@@ -0,0 +1,479 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import org.apache.felix.framework.Logger;
+
+/**
+ * <p>
+ * This class implements an index of the entries of a JAR file that is
+ * persisted next to the JAR file in the bundle cache. For each entry the
+ * index records where its data is stored in the JAR file, how it is
+ * compressed and its checksum, so that entries can be read directly from
+ * the JAR file without opening it as a zip file and that entries not in
+ * the JAR file can be ruled out without reading the JAR file at all. The
+ * index is validated against the modification time and length of the JAR
+ * file and is recreated whenever it no longer matches.
+ * </p>
+**/
+class JarIndex
+{
+    private static final int MAGIC = 0x464a4958;
+    private static final int VERSION = 1;
+
+    // Compression methods; entries with other methods, which are
+    // encrypted or which are too large are not read from the index.
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int UNSUPPORTED = -1;
+
+    // Zip record signatures and sizes.
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIG = 0x06054b50;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private final File m_file;
+    private final Map m_entries;
+    private RandomAccessFile m_raf = null;
+
+    private JarIndex(File file, Map entries)
+    {
+        m_file = file;
+        m_entries = entries;
+    }
+
+    /**
+     * Returns the index of the specified JAR file. The index is read from
+     * the index file if it is still valid for the JAR file, otherwise it is
+     * created from the JAR file's central directory and written to the
+     * index file.
+     * @param logger the logger for index errors.
+     * @param indexFile the file persisting the index.
+     * @param file the JAR file.
+     * @return the index or <tt>null</tt> if the JAR file cannot be indexed.
+    **/
+    public static JarIndex getIndex(Logger logger, File indexFile, File file)
+    {
+        long lastModified;
+        long length;
+        try
+        {
+            lastModified = file.lastModified();
+            length = file.length();
+        }
+        catch (SecurityException ex)
+        {
+            return null;
+        }
+
+        if (BundleCache.getSecureAction().fileExists(indexFile))
+        {
+            try
+            {
+                Map entries = readIndex(indexFile, lastModified, length);
+                if (entries != null)
+                {
+                    return new JarIndex(file, entries);
+                }
+            }
+            catch (Exception ex)
+            {
+                logger.log(
+                    Logger.LOG_DEBUG,
+                    "JarIndex: Unable to read index " + indexFile + ".", ex);
+            }
+        }
+
+        Map entries;
+        try
+        {
+            entries = createIndex(file);
+        }
+        catch (Exception ex)
+        {
+            logger.log(
+                Logger.LOG_DEBUG,
+                "JarIndex: Unable to index JAR file " + file + ".", ex);
+            return null;
+        }
+
+        try
+        {
+            writeIndex(indexFile, lastModified, length, entries);
+        }
+        catch (Exception ex)
+        {
+            logger.log(
+                Logger.LOG_WARNING,
+                "JarIndex: Unable to write index " + indexFile + ".", ex);
+        }
+
+        return new JarIndex(file, entries);
+    }
+
+    /**
+     * Returns whether the JAR file contains the specified entry, either as
+     * a file or as a directory.
+     * @param name the entry name.
+     * @return <tt>true</tt> if the entry exists, <tt>false</tt> otherwise.
+    **/
+    public boolean hasEntry(String name)
+    {
+        return m_entries.containsKey(name) || m_entries.containsKey(name + '/');
+    }
+
+    /**
+     * Returns whether the specified entry can be read from the index, which
+     * is also the case if the entry does not exist.
+     * @param name the entry name.
+     * @return <tt>true</tt> if <tt>getEntryAsBytes()</tt> can be used for
+     *         the entry, <tt>false</tt> if the entry must be read from the
+     *         JAR file.
+    **/
+    public boolean canReadEntry(String name)
+    {
+        Entry entry = (Entry) m_entries.get(name);
+        if (entry == null)
+        {
+            return !m_entries.containsKey(name + '/');
+        }
+        return (entry.m_method != UNSUPPORTED);
+    }
+
+    /**
+     * Reads the specified entry from the JAR file.
+     * @param name the entry name.
+     * @return the bytes of the entry or <tt>null</tt> if it does not exist.
+     * @throws IOException if the entry cannot be read or does not match the
+     *         index.
+    **/
+    public byte[] getEntryAsBytes(String name) throws IOException
+    {
+        Entry entry = (Entry) m_entries.get(name);
+        if (entry == null)
+        {
+            return null;
+        }
+        else if (entry.m_method == UNSUPPORTED)
+        {
+            throw new ZipException("Entry " + name + " cannot be read from the index.");
+        }
+
+        // Only the read of the stored data requires the file lock; the
+        // data is then decompressed and checked without holding it.
+        byte[] data = new byte[entry.m_compressedSize + 1];
+        synchronized (this)
+        {
+            if (m_raf == null)
+            {
+                m_raf = BundleCache.getSecureAction().openRandomAccessFile(m_file, "r");
+            }
+            m_raf.seek(entry.m_offset);
+            m_raf.readFully(data, 0, entry.m_compressedSize);
+        }
+
+        byte[] bytes;
+        if (entry.m_method == STORED)
+        {
+            bytes = new byte[entry.m_size];
+            System.arraycopy(data, 0, bytes, 0, entry.m_size);
+        }
+        else
+        {
+            bytes = inflate(name, data, entry.m_size);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != entry.m_crc)
+        {
+            throw new ZipException("Invalid checksum for entry " + name + ".");
+        }
+        return bytes;
+    }
+
+    /**
+     * Closes the JAR file if it was opened to read entries; it is reopened
+     * if entries are read afterwards.
+    **/
+    public synchronized void close()
+    {
+        if (m_raf != null)
+        {
+            try
+            {
+                m_raf.close();
+            }
+            catch (IOException ex)
+            {
+                // Not much we can do, so ignore it.
+            }
+            m_raf = null;
+        }
+    }
+
+    private static byte[] inflate(String name, byte[] data, int size)
+        throws IOException
+    {
+        // The data array has an extra byte at the end, since the inflater
+        // needs a dummy byte when the zlib header and checksum are omitted.
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(data);
+            byte[] bytes = new byte[size];
+            int off = 0;
+            while (off < size)
+            {
+                int n = inflater.inflate(bytes, off, size - off);
+                if ((n == 0) && (inflater.finished()
+                    || inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                off += n;
+            }
+            if (off < size)
+            {
+                throw new ZipException(
+                    "Entry " + name + " is shorter than its recorded size.");
+            }
+            return bytes;
+        }
+        catch (DataFormatException ex)
+        {
+            throw new ZipException("Invalid data for entry " + name + ".");
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static Map readIndex(File indexFile, long lastModified, long length)
+        throws IOException
+    {
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                BundleCache.getSecureAction().getFileInputStream(indexFile)));
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)
+                || (in.readLong() != lastModified) || (in.readLong() != length))
+            {
+                return null;
+            }
+            int count = in.readInt();
+            Map entries = new HashMap(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++)
+            {
+                String name = in.readUTF();
+                entries.put(name, new Entry(
+                    in.readByte(), in.readLong(), in.readInt(), in.readInt(), in.readInt()));
+            }
+            return entries;
+        }
+        finally
+        {
+            if (in != null) in.close();
+        }
+    }
+
+    private static void writeIndex(
+        File indexFile, long lastModified, long length, Map entries)
+        throws IOException
+    {
+        // Write the index to a temporary file first, so that a partially
+        // written index is never read.
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try
+        {
+            OutputStream os = BundleCache.getSecureAction().getFileOutputStream(tmpFile);
+            out = new DataOutputStream(new BufferedOutputStream(os));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(lastModified);
+            out.writeLong(length);
+            out.writeInt(entries.size());
+            for (Iterator it = entries.entrySet().iterator(); it.hasNext(); )
+            {
+                Map.Entry mapEntry = (Map.Entry) it.next();
+                Entry entry = (Entry) mapEntry.getValue();
+                out.writeUTF((String) mapEntry.getKey());
+                out.writeByte(entry.m_method);
+                out.writeLong(entry.m_offset);
+                out.writeInt(entry.m_compressedSize);
+                out.writeInt(entry.m_size);
+                out.writeInt(entry.m_crc);
+            }
+        }
+        finally
+        {
+            if (out != null) out.close();
+        }
+
+        BundleCache.getSecureAction().deleteFile(indexFile);
+        if (!BundleCache.getSecureAction().renameFile(tmpFile, indexFile))
+        {
+            BundleCache.getSecureAction().deleteFile(tmpFile);
+            throw new IOException("Unable to rename " + tmpFile + ".");
+        }
+    }
+
+    private static Map createIndex(File file) throws IOException
+    {
+        RandomAccessFile raf =
+            BundleCache.getSecureAction().openRandomAccessFile(file, "r");
+        try
+        {
+            // Find the end of central directory record, which is followed
+            // by the archive comment.
+            long length = raf.length();
+            int tailSize = (int) Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+            byte[] tail = new byte[tailSize];
+            raf.seek(length - tailSize);
+            raf.readFully(tail);
+            int end = -1;
+            for (int i = tailSize - END_HEADER_SIZE; (end < 0) && (i >= 0); i--)
+            {
+                if (getInt(tail, i) == END_HEADER_SIG)
+                {
+                    end = i;
+                }
+            }
+            if (end < 0)
+            {
+                throw new ZipException("No central directory found.");
+            }
+
+            int count = getShort(tail, end + 10);
+            long cdSize = getInt(tail, end + 12) & 0xffffffffL;
+            long cdOffset = getInt(tail, end + 16) & 0xffffffffL;
+            if ((count == 0xffff) || (cdOffset == 0xffffffffL)
+                || (cdOffset + cdSize > length))
+            {
+                throw new ZipException("Unsupported central directory.");
+            }
+
+            byte[] cd = new byte[(int) cdSize];
+            raf.seek(cdOffset);
+            raf.readFully(cd);
+
+            Map entries = new HashMap(count * 4 / 3 + 1);
+            byte[] localHeader = new byte[LOCAL_HEADER_SIZE];
+            int pos = 0;
+            for (int i = 0; i < count; i++)
+            {
+                if ((pos + CENTRAL_HEADER_SIZE > cd.length)
+                    || (getInt(cd, pos) != CENTRAL_HEADER_SIG))
+                {
+                    throw new ZipException("Invalid central directory.");
+                }
+                int flags = getShort(cd, pos + 8);
+                int method = getShort(cd, pos + 10);
+                int crc = getInt(cd, pos + 16);
+                long compressedSize = getInt(cd, pos + 20) & 0xffffffffL;
+                long size = getInt(cd, pos + 24) & 0xffffffffL;
+                int nameLength = getShort(cd, pos + 28);
+                int extraLength = getShort(cd, pos + 30);
+                int commentLength = getShort(cd, pos + 32);
+                long localOffset = getInt(cd, pos + 42) & 0xffffffffL;
+                String name = new String(cd, pos + CENTRAL_HEADER_SIZE, nameLength, "UTF-8");
+                pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+
+                if (((flags & 1) != 0) || ((method != STORED) && (method != DEFLATED))
+                    || (compressedSize >= Integer.MAX_VALUE) || (size >= Integer.MAX_VALUE)
+                    || ((method == STORED) && (compressedSize != size))
+                    || (localOffset >= cdOffset))
+                {
+                    entries.put(name, new Entry(UNSUPPORTED, 0, 0, 0, 0));
+                    continue;
+                }
+
+                // The data follows the local header, whose extra field
+                // may differ from the one in the central directory.
+                raf.seek(localOffset);
+                raf.readFully(localHeader);
+                if (getInt(localHeader, 0) != LOCAL_HEADER_SIG)
+                {
+                    throw new ZipException("Invalid local header for entry " + name + ".");
+                }
+                long offset = localOffset + LOCAL_HEADER_SIZE
+                    + getShort(localHeader, 26) + getShort(localHeader, 28);
+
+                entries.put(name, new Entry(
+                    method, offset, (int) compressedSize, (int) size, crc));
+            }
+            return entries;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private static int getShort(byte[] b, int off)
+    {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8);
+    }
+
+    private static int getInt(byte[] b, int off)
+    {
+        return getShort(b, off) | (getShort(b, off + 2) << 16);
+    }
+
+    private static class Entry
+    {
+        private final int m_method;
+        private final long m_offset;
+        private final int m_compressedSize;
+        private final int m_size;
+        private final int m_crc;
+
+        Entry(int method, long offset, int compressedSize, int size, int crc)
+        {
+            m_method = method;
+            m_offset = offset;
+            m_compressedSize = compressedSize;
+            m_size = size;
+            m_crc = crc;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.apache.felix.framework.cache;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Map;
@@ -46,6 +47,7 @@ import org.apache.felix.moduleloader.IContent;
 class JarRevision extends BundleRevision
 {
     private static final transient String BUNDLE_JAR_FILE = "bundle.jar";
+    private static final transient String BUNDLE_INDEX_FILE = "bundle.index";
 
     private File m_bundleFile = null;
 
@@ -105,7 +107,8 @@ class JarRevision extends BundleRevision
 
     public synchronized IContent getContent() throws Exception
     {
-        return new JarContent(getLogger(), this, getRevisionRootDir(), m_bundleFile, true);
+        return new JarContent(getLogger(), this, getRevisionRootDir(), m_bundleFile,
+            true, new File(getRevisionRootDir(), BUNDLE_INDEX_FILE));
     }
 
     public void dispose() throws Exception
@@ -142,6 +145,30 @@ class JarRevision extends BundleRevision
 
             if (!byReference)
             {
+                if ((is == null) && getLocation().startsWith(BundleArchive.FILE_PROTOCOL))
+                {
+                    // Read local files directly rather than through a URL
+                    // connection, so the copy below can use the file's
+                    // channel instead of going through a stream buffer.
+                    // Locations that are not valid file URIs, such as ones
+                    // with unescaped spaces, go through the URL connection.
+                    File file = null;
+                    try
+                    {
+                        file = new File(new URL(getLocation()).toURI());
+                    }
+                    catch (URISyntaxException ex)
+                    {
+                    }
+                    catch (IllegalArgumentException ex)
+                    {
+                    }
+                    if (file != null)
+                    {
+                        is = BundleCache.getSecureAction().getFileInputStream(file);
+                    }
+                }
+
                 if (is == null)
                 {
                     // Do it the manual way to have a chance to
@@ -33,10 +33,12 @@ import java.security.ProtectionDomain;
 import java.security.SecureClassLoader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -102,6 +104,14 @@ public class ModuleImpl implements IModule
     // Thread local to detect class loading cycles.
     private final ThreadLocal m_cycleCheck = new ThreadLocal();
 
+    // Maps package names to the sources searched for the package's classes
+    // and resources, including the names known not to be in them; it is
+    // replaced whenever the module's wires or content change.
+    private volatile Map m_packageLookups = new HashMap();
+    // Immutable map of package names to the wires attaining them, in wire
+    // order; it is replaced whenever the module's wires change.
+    private volatile Map m_wireIndex = Collections.EMPTY_MAP;
+
     /**
      * This constructor is used by the extension manager, since it needs
      * a constructor that does not throw an exception.
@@ -336,6 +346,8 @@ public class ModuleImpl implements IModule
         }
 
         m_wires = wires;
+        m_wireIndex = createWireIndex(m_wires);
+        m_packageLookups = new HashMap();
 
         // Add ourself as a dependent to the new wires' modules.
         for (int i = 0; (m_wires != null) && (i < m_wires.length); i++)
@@ -533,9 +545,14 @@ public class ModuleImpl implements IModule
                     ? Util.getClassPackage(name)
                     : Util.getResourcePackage(name);
 
+                // Get the sources of the package; the lookups are captured
+                // before the wires, so lookups computed for stale wires are
+                // only ever recorded in stale lookups.
+                PackageLookup lookup = getPackageLookup(m_packageLookups, pkgName);
+
                 // Delegate any packages listed in the boot delegation
                 // property to the parent class loader.
-                if (shouldBootDelegate(pkgName))
+                if (lookup.m_bootDelegate)
                 {
                     try
                     {
@@ -560,24 +577,37 @@ public class ModuleImpl implements IModule
                     }
                 }
 
-                // Look in the module's imports. Note that the search may
-                // be aborted if this method throws an exception, otherwise
-                // it continues if a null is returned.
-                result = searchImports(name, isClass);
-
-                // If not found, try the module's own class path.
-                if (result == null)
+                // Skip the module's imports and class path if we already
+                // know they do not contain the class or resource.
+                if (!lookup.isMissing(name, isClass))
                 {
-                    result = (isClass)
-                        ? (Object) getClassLoader().findClass(name)
-                        : (Object) getResourceLocal(name);
+                    // Look in the module's imports. Note that the search may
+                    // be aborted if this method throws an exception, otherwise
+                    // it continues if a null is returned.
+                    result = searchImports(name, isClass, lookup.m_wires);
 
-                    // If still not found, then try the module's dynamic imports.
+                    // If not found, try the module's own class path.
                     if (result == null)
                     {
-                        result = searchDynamicImports(name, pkgName, isClass);
+                        result = (isClass)
+                            ? (Object) getClassLoader().findClass(name)
+                            : (Object) getResourceLocal(name);
+
+                        // Only remember the miss if no wire was searched,
+                        // since a wire may miss due to a cycle in the
+                        // delegation rather than due to the exporter.
+                        if ((result == null) && (lookup.m_wires.length == 0))
+                        {
+                            lookup.addMissing(name, isClass);
+                        }
                     }
                 }
+
+                // If still not found, then try the module's dynamic imports.
+                if (result == null)
+                {
+                    result = searchDynamicImports(name, pkgName, isClass);
+                }
             }
             catch (ResolveException ex)
             {
@@ -1022,6 +1052,7 @@ public class ModuleImpl implements IModule
             }
         }
         m_contentPath = initializeContentPath();
+        m_packageLookups = new HashMap();
     }
 
     public synchronized IModule[] getDependentHosts()
@@ -1153,6 +1184,7 @@ public class ModuleImpl implements IModule
             m_fragmentContents[i].close();
         }
         m_classLoader = null;
+        m_packageLookups = new HashMap();
     }
 
     public synchronized void setSecurityContext(Object securityContext)
@@ -1174,20 +1206,7 @@ public class ModuleImpl implements IModule
     {
         if (m_classLoader == null)
         {
-            if (System.getSecurityManager() != null)
-            {
-                m_classLoader = (ModuleClassLoader)
-                    AccessController.doPrivileged(new PrivilegedAction() {
-                        public Object run()
-                        {
-                            return new ModuleClassLoader();
-                        }
-                    });
-            }
-            else
-            {
-                m_classLoader = new ModuleClassLoader();
-            }
+            m_classLoader = createClassLoader();
 // TODO: SECURITY - Would be nice if this could use SecureAction again.
 //            m_classLoader = m_secureAction.createModuleClassLoader(
 //                this, m_protectionDomain);
@@ -1195,12 +1214,105 @@ public class ModuleImpl implements IModule
         return m_classLoader;
     }
 
-    private Object searchImports(String name, boolean isClass)
+    private ModuleClassLoader createClassLoader()
+    {
+        if (System.getSecurityManager() != null)
+        {
+            return (ModuleClassLoader)
+                AccessController.doPrivileged(new PrivilegedAction() {
+                    public Object run()
+                    {
+                        return new ModuleClassLoader(ModuleImpl.this);
+                    }
+                });
+        }
+        return new ModuleClassLoader(this);
+    }
+
+    private PackageLookup getPackageLookup(Map lookups, String pkgName)
+    {
+        PackageLookup lookup;
+        synchronized (lookups)
+        {
+            lookup = (PackageLookup) lookups.get(pkgName);
+        }
+
+        if (lookup == null)
+        {
+            // Only the wires attaining the package need to be searched, the
+            // others return null for any class or resource in the package.
+            IWire[] wires = (IWire[]) m_wireIndex.get(pkgName);
+            lookup = new PackageLookup(shouldBootDelegate(pkgName),
+                (wires == null) ? new IWire[0] : wires);
+
+            synchronized (lookups)
+            {
+                PackageLookup existing = (PackageLookup) lookups.get(pkgName);
+                if (existing != null)
+                {
+                    lookup = existing;
+                }
+                else
+                {
+                    lookups.put(pkgName, lookup);
+                }
+            }
+        }
+
+        return lookup;
+    }
+
+    private static Map createWireIndex(IWire[] wires)
+    {
+        if ((wires == null) || (wires.length == 0))
+        {
+            return Collections.EMPTY_MAP;
+        }
+
+        Map index = new HashMap();
+        for (int i = 0; i < wires.length; i++)
+        {
+            if (wires[i] instanceof R4Wire)
+            {
+                String pkgName = ((R4Wire) wires[i]).getPackageName();
+                if (pkgName != null)
+                {
+                    addToWireIndex(index, pkgName, wires[i]);
+                }
+            }
+            else if (wires[i] instanceof R4WireModule)
+            {
+                for (Iterator it = ((R4WireModule) wires[i]).getPackageNames().iterator();
+                    it.hasNext(); )
+                {
+                    addToWireIndex(index, (String) it.next(), wires[i]);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(index);
+    }
+
+    private static void addToWireIndex(Map index, String pkgName, IWire wire)
+    {
+        IWire[] wires = (IWire[]) index.get(pkgName);
+        if (wires == null)
+        {
+            index.put(pkgName, new IWire[] { wire });
+        }
+        else
+        {
+            IWire[] newWires = new IWire[wires.length + 1];
+            System.arraycopy(wires, 0, newWires, 0, wires.length);
+            newWires[wires.length] = wire;
+            index.put(pkgName, newWires);
+        }
+    }
+
+    private Object searchImports(String name, boolean isClass, IWire[] wires)
         throws ClassNotFoundException, ResourceNotFoundException
     {
         // We delegate to the module's wires to find the class or resource.
-        IWire[] wires = getWires();
-        for (int i = 0; (wires != null) && (i < wires.length); i++)
+        for (int i = 0; i < wires.length; i++)
         {
             // If we find the class or resource, then return it.
             Object result = (isClass)
@@ -1429,13 +1541,39 @@ public class ModuleImpl implements IModule
         m_dexFileClassLoadClass = dexFileClassLoadClass;
     }
 
-    public class ModuleClassLoader extends SecureClassLoader
+    public static class ModuleClassLoader extends SecureClassLoader
     {
+        static
+        {
+            // Parallel capable class loaders are not locked by the VM when
+            // it loads classes through them. The registration is only
+            // available on Java 7 and later and must be made by the class
+            // loader class itself before any instance is created.
+            try
+            {
+                Method m = ClassLoader.class.getDeclaredMethod(
+                    "registerAsParallelCapable", (Class[]) null);
+                m.invoke(null, (Object[]) null);
+            }
+            catch (Throwable ex)
+            {
+                // Not available, so classes are loaded serially by the VM.
+            }
+        }
+
+        private final ModuleImpl m_module;
         private final Map m_jarContentToDexFile;
+        // Classes are defined under a lock per class name, rather than
+        // under the class loader lock, so that different classes can be
+        // defined concurrently. Since defining a class may load its super
+        // classes, which are different names, these locks cannot deadlock.
+        private final Map m_defineLocks = new HashMap();
+        private final Object m_packageLock = new Object();
 
-        public ModuleClassLoader()
+        public ModuleClassLoader(ModuleImpl module)
         {
-            super(ModuleImpl.this.getClass().getClassLoader());
+            super(module.getClass().getClassLoader());
+            m_module = module;
             if (m_dexFileClassConstructor != null)
             {
                 m_jarContentToDexFile = new HashMap();
@@ -1448,7 +1586,7 @@ public class ModuleImpl implements IModule
 
         public IModule getModule()
         {
-            return ModuleImpl.this;
+            return m_module;
         }
 
         protected Class loadClass(String name, boolean resolve)
@@ -1457,16 +1595,13 @@ public class ModuleImpl implements IModule
             Class clazz = null;
 
             // Make sure the class was not already loaded.
-            synchronized (this)
-            {
-                clazz = findLoadedClass(name);
-            }
+            clazz = findLoadedClass(name);
 
             if (clazz == null)
             {
                 try
                 {
-                    clazz = (Class) findClassOrResourceByDelegation(name, true);
+                    clazz = (Class) m_module.findClassOrResourceByDelegation(name, true);
                 }
                 catch (ResourceNotFoundException ex)
                 {
@@ -1477,9 +1612,9 @@ public class ModuleImpl implements IModule
                 {
                     ClassNotFoundException ex = cnfe;
                     String msg = name;
-                    if (m_logger.getLogLevel() >= Logger.LOG_DEBUG)
+                    if (m_module.m_logger.getLogLevel() >= Logger.LOG_DEBUG)
                     {
-                        msg = diagnoseClassLoadError(m_resolver, ModuleImpl.this, name);
+                        msg = diagnoseClassLoadError(m_module.m_resolver, m_module, name);
                         ex = new ClassNotFoundException(msg, cnfe);
                     }
                     throw ex;
@@ -1506,7 +1641,7 @@ public class ModuleImpl implements IModule
                 byte[] bytes = null;
 
                 // Check the module class path.
-                IContent[] contentPath = getContentPath();
+                IContent[] contentPath = m_module.getContentPath();
                 IContent content = null;
                 for (int i = 0;
                     (bytes == null) &&
@@ -1519,87 +1654,126 @@ public class ModuleImpl implements IModule
                 if (bytes != null)
                 {
                     // Before we actually attempt to define the class, grab
-                    // the lock for this class loader and make sure than no
+                    // the lock for this class name and make sure than no
                     // other thread has defined this class in the meantime.
-                    synchronized (this)
+                    DefineLock lock = acquireDefineLock(name);
+                    try
                     {
-                        clazz = findLoadedClass(name);
-
-                        if (clazz == null)
+                        synchronized (lock)
                         {
-                            // We need to try to define a Package object for the class
-                            // before we call defineClass(). Get the package name and
-                            // see if we have already created the package.
-                            String pkgName = Util.getClassPackage(name);
-                            if (pkgName.length() > 0)
+                            clazz = findLoadedClass(name);
+
+                            if (clazz == null)
                             {
-                                if (getPackage(pkgName) == null)
+                                // We need to try to define a Package object for the class
+                                // before we call defineClass(). Get the package name and
+                                // see if we have already created the package.
+                                String pkgName = Util.getClassPackage(name);
+                                if (pkgName.length() > 0)
                                 {
-                                    Object[] params = definePackage(pkgName);
-                                    if (params != null)
+                                    synchronized (m_packageLock)
                                     {
-                                        definePackage(
-                                            pkgName,
-                                            (String) params[0],
-                                            (String) params[1],
-                                            (String) params[2],
-                                            (String) params[3],
-                                            (String) params[4],
-                                            (String) params[5],
-                                            null);
-                                    }
-                                    else
-                                    {
-                                        definePackage(pkgName, null, null,
-                                            null, null, null, null, null);
+                                        if (getPackage(pkgName) == null)
+                                        {
+                                            Object[] params = definePackage(pkgName);
+                                            if (params != null)
+                                            {
+                                                definePackage(
+                                                    pkgName,
+                                                    (String) params[0],
+                                                    (String) params[1],
+                                                    (String) params[2],
+                                                    (String) params[3],
+                                                    (String) params[4],
+                                                    (String) params[5],
+                                                    null);
+                                            }
+                                            else
+                                            {
+                                                definePackage(pkgName, null, null,
+                                                    null, null, null, null, null);
+                                            }
+                                        }
                                     }
                                 }
-                            }
 
-                            // If we can load the class from a dex file do so
-                            if (content instanceof JarContent)
-                            {
-                                try
-                                {
-                                    clazz = getDexFileClass((JarContent) content, name, this);
-                                }
-                                catch (Exception ex)
+                                // If we can load the class from a dex file do so
+                                if (content instanceof JarContent)
                                 {
-                                    // Looks like we can't
+                                    try
+                                    {
+                                        clazz = getDexFileClass((JarContent) content, name, this);
+                                    }
+                                    catch (Exception ex)
+                                    {
+                                        // Looks like we can't
+                                    }
                                 }
-                            }
 
-                            if (clazz == null)
-                            {
-                                // If we have a security context, then use it to
-                                // define the class with it for security purposes,
-                                // otherwise define the class without a protection domain.
-                                if (m_protectionDomain != null)
+                                if (clazz == null)
                                 {
-                                    clazz = defineClass(name, bytes, 0, bytes.length,
-                                        m_protectionDomain);
-                                }
-                                else
-                                {
-                                    clazz = defineClass(name, bytes, 0, bytes.length);
+                                    // If we have a security context, then use it to
+                                    // define the class with it for security purposes,
+                                    // otherwise define the class without a protection domain.
+                                    if (m_module.m_protectionDomain != null)
+                                    {
+                                        clazz = defineClass(name, bytes, 0, bytes.length,
+                                            m_module.m_protectionDomain);
+                                    }
+                                    else
+                                    {
+                                        clazz = defineClass(name, bytes, 0, bytes.length);
+                                    }
                                 }
                             }
                         }
                     }
+                    finally
+                    {
+                        releaseDefineLock(name, lock);
+                    }
                 }
             }
 
             return clazz;
         }
 
+        private DefineLock acquireDefineLock(String name)
+        {
+            synchronized (m_defineLocks)
+            {
+                DefineLock lock = (DefineLock) m_defineLocks.get(name);
+                if (lock == null)
+                {
+                    lock = new DefineLock();
+                    m_defineLocks.put(name, lock);
+                }
+                lock.m_users++;
+                return lock;
+            }
+        }
+
+        private void releaseDefineLock(String name, DefineLock lock)
+        {
+            synchronized (m_defineLocks)
+            {
+                // Remove the lock once no thread is defining the class,
+                // so the map only holds classes being defined.
+                if (--lock.m_users == 0)
+                {
+                    m_defineLocks.remove(name);
+                }
+            }
+        }
+
         private Object[] definePackage(String pkgName)
         {
-            String spectitle = (String) m_headerMap.get("Specification-Title");
-            String specversion = (String) m_headerMap.get("Specification-Version");
-            String specvendor = (String) m_headerMap.get("Specification-Vendor");
-            String impltitle = (String) m_headerMap.get("Implementation-Title");
-            String implversion = (String) m_headerMap.get("Implementation-Version");
-            String implvendor = (String) m_headerMap.get("Implementation-Vendor");
+            String spectitle = (String) m_module.m_headerMap.get("Specification-Title");
+            String specversion = (String) m_module.m_headerMap.get("Specification-Version");
+            String specvendor = (String) m_module.m_headerMap.get("Specification-Vendor");
+            String impltitle = (String) m_module.m_headerMap.get("Implementation-Title");
+            String implversion = (String) m_module.m_headerMap.get("Implementation-Version");
+            String implvendor = (String) m_module.m_headerMap.get("Implementation-Vendor");
             if ((spectitle != null)
                 || (specversion != null)
                 || (specvendor != null)
@@ -1624,22 +1798,25 @@ public class ModuleImpl implements IModule
 
             Object dexFile = null;
 
-            if (!m_jarContentToDexFile.containsKey(content))
+            synchronized (m_jarContentToDexFile)
             {
-                try
+                if (!m_jarContentToDexFile.containsKey(content))
                 {
-                    dexFile = m_dexFileClassConstructor.newInstance(
-                        new Object[] { content.getFile() });
+                    try
+                    {
+                        dexFile = m_dexFileClassConstructor.newInstance(
+                            new Object[] { content.getFile() });
+                    }
+                    finally
+                    {
+                        m_jarContentToDexFile.put(content, dexFile);
+                    }
                 }
-                finally
+                else
                 {
-                    m_jarContentToDexFile.put(content, dexFile);
+                    dexFile = m_jarContentToDexFile.get(content);
                 }
             }
-            else
-            {
-                dexFile = m_jarContentToDexFile.get(content);
-            }
 
             if (dexFile != null)
             {
@@ -1651,12 +1828,12 @@ public class ModuleImpl implements IModule
 
         public URL getResource(String name)
         {
-            return ModuleImpl.this.getResourceByDelegation(name);
+            return m_module.getResourceByDelegation(name);
         }
 
         protected URL findResource(String name)
         {
-            return getResourceLocal(name);
+            return m_module.getResourceLocal(name);
         }
 
         // The findResources() method should only look at the module itself, but
@@ -1666,7 +1843,7 @@ public class ModuleImpl implements IModule
         // can't. As a workaround, we make findResources() delegate instead.
         protected Enumeration findResources(String name)
         {
-            return getResourcesByDelegation(name);
+            return m_module.getResourcesByDelegation(name);
         }
 
         protected String findLibrary(String name)
@@ -1677,12 +1854,12 @@ public class ModuleImpl implements IModule
                 name = name.substring(1);
             }
 
-            R4Library[] libs = getNativeLibraries();
+            R4Library[] libs = m_module.getNativeLibraries();
             for (int i = 0; (libs != null) && (i < libs.length); i++)
             {
                 if (libs[i].match(name))
                 {
-                    return getContent().getEntryAsNativeLibrary(libs[i].getEntryName());
+                    return m_module.getContent().getEntryAsNativeLibrary(libs[i].getEntryName());
                 }
             }
 
@@ -1691,10 +1868,16 @@ public class ModuleImpl implements IModule
 
         public String toString()
         {
-            return ModuleImpl.this.toString();
+            return m_module.toString();
         }
     }
 
+    private static class DefineLock
+    {
+        // Number of threads using the lock, guarded by the map of locks.
+        private int m_users = 0;
+    }
+
     private static String diagnoseClassLoadError(
         FelixResolver resolver, ModuleImpl module, String name)
     {
@@ -1979,4 +2162,44 @@ public class ModuleImpl implements IModule
 
         return sb.toString();
     }
+
+    private static class PackageLookup
+    {
+        private final boolean m_bootDelegate;
+        private final IWire[] m_wires;
+        private Set m_missingClasses = null;
+        private Set m_missingResources = null;
+
+        PackageLookup(boolean bootDelegate, IWire[] wires)
+        {
+            m_bootDelegate = bootDelegate;
+            m_wires = wires;
+        }
+
+        synchronized boolean isMissing(String name, boolean isClass)
+        {
+            Set missing = (isClass) ? m_missingClasses : m_missingResources;
+            return (missing != null) && missing.contains(name);
+        }
+
+        synchronized void addMissing(String name, boolean isClass)
+        {
+            if (isClass)
+            {
+                if (m_missingClasses == null)
+                {
+                    m_missingClasses = new HashSet();
+                }
+                m_missingClasses.add(name);
+            }
+            else
+            {
+                if (m_missingResources == null)
+                {
+                    m_missingResources = new HashSet();
+                }
+                m_missingResources.add(name);
+            }
+        }
+    }
 }
@@ -19,10 +19,10 @@
 package org.apache.felix.framework.searchpolicy;
 
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.VersionRange;
 import org.apache.felix.framework.util.manifestparser.Capability;
 import org.apache.felix.moduleloader.ICapability;
 import org.apache.felix.moduleloader.IModule;
-import org.osgi.framework.Constants;
 import org.osgi.framework.Version;
 
 /**
@@ -49,19 +49,25 @@ public class PackageSource implements Comparable
         PackageSource ps = (PackageSource) o;
         Version thisVersion = null;
         Version version = null;
+        long thisKey = VersionRange.UNPACKED;
+        long key = VersionRange.UNPACKED;
         if (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
         {
             thisVersion = ((Capability) m_capability).getPackageVersion();
             version = ((Capability) ps.m_capability).getPackageVersion();
+            thisKey = ((Capability) m_capability).getPackageVersionKey();
+            key = ((Capability) ps.m_capability).getPackageVersionKey();
         }
         else if (m_capability.getNamespace().equals(ICapability.MODULE_NAMESPACE))
         {
-            thisVersion = (Version) m_capability.getProperties().get(Constants.BUNDLE_VERSION_ATTRIBUTE);
-            version = (Version) ps.m_capability.getProperties().get(Constants.BUNDLE_VERSION_ATTRIBUTE);
+            thisVersion = ((Capability) m_capability).getBundleVersion();
+            version = ((Capability) ps.m_capability).getBundleVersion();
+            thisKey = ((Capability) m_capability).getBundleVersionKey();
+            key = ((Capability) ps.m_capability).getBundleVersionKey();
         }
         if ((thisVersion != null) && (version != null))
         {
-            int cmp = thisVersion.compareTo(version);
+            int cmp = VersionRange.compare(thisKey, thisVersion, key, version);
             if (cmp < 0)
             {
                 return 1;
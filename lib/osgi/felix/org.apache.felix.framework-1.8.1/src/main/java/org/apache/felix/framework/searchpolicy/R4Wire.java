@@ -31,6 +31,9 @@ public class R4Wire implements IWire
     private final IRequirement m_requirement;
     private final IModule m_exporter;
     private final ICapability m_capability;
+    // The name of the package attained by the wire, or null if the
+    // capability is not a package.
+    private final String m_pkgName;
 
     public R4Wire(IModule importer, IRequirement requirement,
         IModule exporter, ICapability capability)
@@ -39,6 +42,9 @@ public class R4Wire implements IWire
         m_requirement = requirement;
         m_exporter = exporter;
         m_capability = capability;
+        m_pkgName = (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+            ? (String) m_capability.getProperties().get(ICapability.PACKAGE_PROPERTY)
+            : null;
     }
 
     /* (non-Javadoc)
@@ -78,8 +84,7 @@ public class R4Wire implements IWire
      */
     public boolean hasPackage(String pkgName)
     {
-        return (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
-            m_capability.getProperties().get(ICapability.PACKAGE_PROPERTY).equals(pkgName));
+        return (m_pkgName != null) && m_pkgName.equals(pkgName);
     }
 
     /* (non-Javadoc)
@@ -94,16 +99,14 @@ public class R4Wire implements IWire
 
         // Only check when the package of the target class is
         // the same as the package for the wire.
-        if (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
-            m_capability.getProperties().get(ICapability.PACKAGE_PROPERTY).equals(pkgName))
+        if ((m_pkgName != null) && m_pkgName.equals(pkgName))
         {
             // Check the include/exclude filters from the target package
             // to make sure that the class is actually visible. We delegate
             // to the exporting module, rather than its content, so it can
             // it can follow any internal wires it may have (e.g., if the
             // package has multiple sources).
-            if (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE)
-                && ((Capability) m_capability).isIncluded(name))
+            if (((Capability) m_capability).isIncluded(name))
             {
                 clazz = m_exporter.getClassByDelegation(name);
             }
@@ -132,8 +135,7 @@ public class R4Wire implements IWire
 
         // Only check when the package of the target resource is
         // the same as the package for the wire.
-        if (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
-            m_capability.getProperties().get(ICapability.PACKAGE_PROPERTY).equals(pkgName))
+        if ((m_pkgName != null) && m_pkgName.equals(pkgName))
         {
             // Delegate to the exporting module, rather than its
             // content, so that it can follow any internal wires it may have
@@ -164,8 +166,7 @@ public class R4Wire implements IWire
 
         // Only check when the package of the target resource is
         // the same as the package for the wire.
-        if (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE) &&
-            m_capability.getProperties().get(ICapability.PACKAGE_PROPERTY).equals(pkgName))
+        if ((m_pkgName != null) && m_pkgName.equals(pkgName))
         {
             urls = m_exporter.getResourcesByDelegation(name);
 
@@ -181,13 +182,21 @@ public class R4Wire implements IWire
         return urls;
     }
 
+    /**
+     * Returns the name of the package attained by this wire.
+     * @return the package name or <tt>null</tt> if the wire is not for
+     *         a package.
+    **/
+    public String getPackageName()
+    {
+        return m_pkgName;
+    }
+
     public String toString()
     {
-        if (m_capability.getNamespace().equals(ICapability.PACKAGE_NAMESPACE))
+        if (m_pkgName != null)
         {
-            return m_importer + " -> "
-                + m_capability.getProperties().get(ICapability.PACKAGE_PROPERTY)
-                + " -> " + m_exporter;
+            return m_importer + " -> " + m_pkgName + " -> " + m_exporter;
         }
         return m_importer + " -> " + m_capability + " -> " + m_exporter;
     }
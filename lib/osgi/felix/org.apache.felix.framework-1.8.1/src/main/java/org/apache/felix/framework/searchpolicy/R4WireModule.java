@@ -86,6 +86,15 @@ public class R4WireModule implements IWire
         return (m_pkgMap.get(pkgName) != null);
     }
 
+    /**
+     * Returns the names of the packages attained by this wire.
+     * @return the set of package names.
+    **/
+    public Set getPackageNames()
+    {
+        return m_pkgMap.keySet();
+    }
+
     /* (non-Javadoc)
      * @see org.apache.felix.framework.searchpolicy.IWire#getClass(java.lang.String)
      */
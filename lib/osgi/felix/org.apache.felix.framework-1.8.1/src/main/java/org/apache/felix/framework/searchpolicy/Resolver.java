@@ -22,9 +22,11 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.Capability;
@@ -40,6 +42,15 @@ import org.osgi.framework.Constants;
 public class Resolver
 {
     private final Logger m_logger;
+    // The maximum number of candidate permutations tested when resolving
+    // a module, or zero if the number is not limited.
+    private final int m_maxPermutations;
+    // The maximum number of threads used to search groups of independent
+    // modules for a consistent class space when resolving modules together.
+    private final int m_threads;
+
+    // Default limit of candidate permutations.
+    public static final int DEFAULT_MAX_PERMUTATIONS = 100000;
 
     // Reusable empty array.
     private static final IWire[] m_emptyWires = new IWire[0];
@@ -47,8 +58,20 @@ public class Resolver
     private static final PackageSource[] m_emptySources = new PackageSource[0];
 
     public Resolver(Logger logger)
+    {
+        this(logger, DEFAULT_MAX_PERMUTATIONS);
+    }
+
+    public Resolver(Logger logger, int maxPermutations)
+    {
+        this(logger, maxPermutations, 1);
+    }
+
+    public Resolver(Logger logger, int maxPermutations, int threads)
     {
         m_logger = logger;
+        m_maxPermutations = maxPermutations;
+        m_threads = Math.max(1, threads);
     }
 
     // Returns a map of resolved bundles where the key is the module
@@ -91,7 +114,7 @@ public class Resolver
         // a consistent set of candidates; otherwise, a resolve exception
         // is thrown if it exhausts all possible combinations and could
         // not find a consistent class space.
-        findConsistentClassSpace(state, candidatesMap, rootModule);
+        findConsistentClassSpace(state, candidatesMap, new IModule[] { rootModule });
 
         // The final step is to create the wires for the root module and
         // transitively all modules that are to be resolved from the
@@ -104,6 +127,274 @@ public class Resolver
         return populateWireMap(state, candidatesMap, rootModule, new HashMap());
     }
 
+    // Returns a map of resolved bundles where the key is the module
+    // and the value is an array of wires. The root modules are resolved
+    // together, sharing one candidates map. The root modules are then
+    // partitioned into groups that share no unresolved modules and the
+    // search for a consistent class space of each group is performed
+    // independently, concurrently if more than one thread is configured.
+    // Root modules whose requirements cannot be satisfied and groups for
+    // which no consistent class space exists are left unresolved; an
+    // exception is only thrown if no root module can be resolved.
+    public Map resolve(ResolverState state, IModule[] rootModules) throws ResolveException
+    {
+        // Populate the shared candidates map from all unresolved root
+        // modules, skipping those that cannot be resolved at all.
+        Map candidatesMap = new HashMap();
+        List rootList = new ArrayList();
+        ResolveException rethrow = null;
+        for (int i = 0; i < rootModules.length; i++)
+        {
+            if (!rootModules[i].isResolved())
+            {
+                try
+                {
+                    populateCandidatesMap(state, candidatesMap, rootModules[i]);
+                    rootList.add(rootModules[i]);
+                }
+                catch (ResolveException ex)
+                {
+                    m_logger.log(
+                        Logger.LOG_DEBUG,
+                        "Unable to resolve " + rootModules[i] + ".", ex);
+                    rethrow = (rethrow == null) ? ex : rethrow;
+                }
+            }
+        }
+
+        // Determine a consistent class space for each group of root modules.
+        if (rootList.size() == 0)
+        {
+            if (rethrow != null)
+            {
+                throw rethrow;
+            }
+            return null;
+        }
+        ResolverGroup[] groups = partitionRootModules(candidatesMap, rootList);
+        findConsistentClassSpaces(state, groups);
+
+        // Create the wires for the root modules of all consistent groups
+        // and the modules to be resolved with them. No wires are created
+        // until all groups have been searched, so the caller can commit
+        // the returned wiring at once.
+        Map wireMap = new HashMap();
+        rethrow = null;
+        for (int i = 0; i < groups.length; i++)
+        {
+            if (groups[i].m_exception != null)
+            {
+                m_logger.log(
+                    Logger.LOG_DEBUG,
+                    "Unable to resolve " + groups[i].m_rootList + ".",
+                    groups[i].m_exception);
+                rethrow = (rethrow == null) ? groups[i].m_exception : rethrow;
+                continue;
+            }
+            for (int rootIdx = 0; rootIdx < groups[i].m_rootList.size(); rootIdx++)
+            {
+                wireMap = populateWireMap(
+                    state, candidatesMap, (IModule) groups[i].m_rootList.get(rootIdx), wireMap);
+            }
+        }
+        if ((wireMap.size() == 0) && (rethrow != null))
+        {
+            throw rethrow;
+        }
+        return wireMap;
+    }
+
+    /**
+     * Partitions the specified root modules into groups, such that no
+     * unresolved module is a potential candidate for modules of more than
+     * one group and unresolved singleton modules with the same symbolic name
+     * are in the same group. The class space of each group can thus be
+     * searched independently of the other groups.
+     * @param candidatesMap the candidates map populated for all root modules.
+     * @param rootList the list of root modules.
+     * @return the groups of root modules, each with its own candidates map.
+    **/
+    private static ResolverGroup[] partitionRootModules(Map candidatesMap, List rootList)
+    {
+        // Maps modules and singleton symbolic names to their group.
+        Map groupMap = new HashMap();
+        List groupList = new ArrayList();
+        for (int rootIdx = 0; rootIdx < rootList.size(); rootIdx++)
+        {
+            IModule root = (IModule) rootList.get(rootIdx);
+
+            // Collect the unresolved modules reachable from the root module.
+            Set modules = new HashSet();
+            addReachableModules(candidatesMap, root, modules);
+
+            // Merge the root module with all groups sharing one of its
+            // reachable modules or singleton symbolic names.
+            ResolverGroup group = new ResolverGroup();
+            group.m_rootList.add(root);
+            group.m_modules.addAll(modules);
+            for (Iterator iter = modules.iterator(); iter.hasNext(); )
+            {
+                IModule module = (IModule) iter.next();
+                ResolverGroup other = (ResolverGroup) groupMap.get(module);
+                if ((other == null) && isSingleton(module))
+                {
+                    other = (ResolverGroup) groupMap.get(module.getSymbolicName());
+                }
+                if ((other != null) && (other != group))
+                {
+                    group.m_rootList.addAll(other.m_rootList);
+                    group.m_modules.addAll(other.m_modules);
+                    groupList.remove(other);
+                    for (Iterator otherIter = other.m_modules.iterator(); otherIter.hasNext(); )
+                    {
+                        IModule otherModule = (IModule) otherIter.next();
+                        groupMap.put(otherModule, group);
+                        if (isSingleton(otherModule))
+                        {
+                            groupMap.put(otherModule.getSymbolicName(), group);
+                        }
+                    }
+                }
+            }
+            for (Iterator iter = modules.iterator(); iter.hasNext(); )
+            {
+                IModule module = (IModule) iter.next();
+                groupMap.put(module, group);
+                if (isSingleton(module))
+                {
+                    groupMap.put(module.getSymbolicName(), group);
+                }
+            }
+            groupList.add(group);
+        }
+
+        // Give each group a candidates map containing only its modules.
+        ResolverGroup[] groups = (ResolverGroup[])
+            groupList.toArray(new ResolverGroup[groupList.size()]);
+        for (int i = 0; i < groups.length; i++)
+        {
+            for (Iterator iter = groups[i].m_modules.iterator(); iter.hasNext(); )
+            {
+                Object module = iter.next();
+                groups[i].m_candidatesMap.put(module, candidatesMap.get(module));
+            }
+        }
+        return groups;
+    }
+
+    private static void addReachableModules(Map candidatesMap, IModule module, Set modules)
+    {
+        if (!modules.add(module))
+        {
+            return;
+        }
+
+        List candSetList = (List) candidatesMap.get(module);
+        for (int csIdx = 0; (candSetList != null) && (csIdx < candSetList.size()); csIdx++)
+        {
+            CandidateSet cs = (CandidateSet) candSetList.get(csIdx);
+            for (int candIdx = 0; (cs.m_candidates != null)
+                && (candIdx < cs.m_candidates.length); candIdx++)
+            {
+                if (candidatesMap.get(cs.m_candidates[candIdx].m_module) != null)
+                {
+                    addReachableModules(candidatesMap, cs.m_candidates[candIdx].m_module, modules);
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches a consistent class space for each of the specified groups,
+     * using up to the configured number of threads. Each search uses its
+     * own resolver instance, since a search keeps its rotated candidates
+     * in the resolver, and only modifies the candidate sets of its own
+     * group. The outcome of each search is recorded in its group.
+     * @param state the resolver state.
+     * @param groups the groups of root modules to search.
+    **/
+    private void findConsistentClassSpaces(final ResolverState state, final ResolverGroup[] groups)
+    {
+        final int[] next = new int[] { 0 };
+        final RuntimeException[] error = new RuntimeException[1];
+        Runnable search = new Runnable() {
+            public void run()
+            {
+                Resolver resolver = new Resolver(m_logger, m_maxPermutations, 1);
+                while (true)
+                {
+                    ResolverGroup group = null;
+                    synchronized (next)
+                    {
+                        if ((next[0] >= groups.length) || (error[0] != null))
+                        {
+                            return;
+                        }
+                        group = groups[next[0]++];
+                    }
+                    try
+                    {
+                        resolver.findConsistentClassSpace(
+                            state, group.m_candidatesMap,
+                            (IModule[]) group.m_rootList.toArray(
+                                new IModule[group.m_rootList.size()]));
+                    }
+                    catch (ResolveException ex)
+                    {
+                        group.m_exception = ex;
+                    }
+                    catch (RuntimeException ex)
+                    {
+                        synchronized (next)
+                        {
+                            error[0] = ex;
+                        }
+                        return;
+                    }
+                }
+            }
+        };
+
+        // Search on the calling thread, helped by additional threads
+        // if there are several groups.
+        Thread[] threads = new Thread[Math.min(m_threads, groups.length) - 1];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(search, "FelixResolver-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+        search.run();
+
+        // Wait for all searches to finish, since the candidate sets must
+        // not be used before that.
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++)
+        {
+            try
+            {
+                threads[i].join();
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+                i--;
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (next)
+        {
+            if (error[0] != null)
+            {
+                throw error[0];
+            }
+        }
+    }
+
     // TODO: RESOLVER - Fix this return type.
     // Return candidate wire in result[0] and wire map in result[1]
     public Object[] resolveDynamicImport(ResolverState state, IModule importer, String pkgName)
@@ -263,7 +554,7 @@ public class Resolver
         if (!provider.isResolved())
         {
             populateCandidatesMap(state, candidatesMap, provider);
-            findConsistentClassSpace(state, candidatesMap, provider);
+            findConsistentClassSpace(state, candidatesMap, new IModule[] { provider });
         }
 
         // If the provider can be successfully resolved, then verify that
@@ -434,14 +725,15 @@ public class Resolver
         }
     }
 
-    // This flag indicates whether candidates have been rotated due to a
-    // "uses" constraint conflict. If so, then it is not necessary to perform
-    // a permutation, since rotating the candidates selected a new permutation.
-    // This part of an attempt to perform smarter permutations.
-    private boolean m_candidatesRotated = false;
+    // This field holds the candidate set whose candidates have been rotated
+    // due to a "uses" constraint conflict, if any. If so, then it is not
+    // necessary to perform a permutation, since rotating the candidates
+    // selected a new permutation. This part of an attempt to perform smarter
+    // permutations.
+    private CandidateSet m_rotatedCandSet = null;
 
     private void findConsistentClassSpace(
-        ResolverState state, Map candidatesMap, IModule rootModule)
+        ResolverState state, Map candidatesMap, IModule[] rootModules)
         throws ResolveException
     {
         List candidatesList = null;
@@ -450,17 +742,27 @@ public class Resolver
         // resolved packages that are accessible by the given
         // module. The set of resolved packages is calculated
         // from the current candidates of the candidates map
-        // and the module's metadata.
+        // and the module's metadata. It is kept across permutations,
+        // only the modules affected by a permutation are removed.
         Map moduleMap = new HashMap();
 
         // Reusable map used to test for cycles.
         Map cycleMap = new HashMap();
 
+        // Modules whose candidates changed in the last permutation.
+        Set changedModules = new HashSet();
+
+        // Unresolved modules requiring other modules, whose package
+        // maps depend on the candidates of the required modules too.
+        List requirerList = null;
+
+        int permutations = 0;
+
         // Test the current potential candidates to determine if they
         // are consistent. Keep looping until we find a consistent
         // set or an exception is thrown.
-        while (!isSingletonConsistent(state, rootModule, moduleMap, candidatesMap) ||
-            !isClassSpaceConsistent(rootModule, moduleMap, cycleMap, candidatesMap))
+        while (!isSingletonConsistent(state, rootModules, moduleMap, candidatesMap) ||
+            !isClassSpaceConsistent(rootModules, moduleMap, cycleMap, candidatesMap))
         {
             // The incrementCandidateConfiguration() method requires
             // ordered access to the candidates map, so we will create
@@ -512,34 +814,117 @@ public class Resolver
                 });
             }
 
+            // Give up if the search space is too large to test exhaustively.
+            permutations++;
+            if ((m_maxPermutations > 0) && (permutations > m_maxPermutations))
+            {
+                throw createPermutationLimitException(rootModules, candidatesList);
+            }
+
             // Increment the candidate configuration to a new permutation so
             // we can test again, unless some candidates have been rotated.
             // In that case, we re-test the current permutation, since rotating
             // the candidates effectively selects a new permutation.
-            if (!m_candidatesRotated)
+            if (m_rotatedCandSet == null)
             {
-                incrementCandidateConfiguration(candidatesList);
+                incrementCandidateConfiguration(candidatesList, changedModules);
             }
             else
             {
-                m_candidatesRotated = false;
+                changedModules.add(m_rotatedCandSet.m_module);
+                m_rotatedCandSet = null;
             }
 
-            // Clear the module map.
-            moduleMap.clear();
+            // Remove the package maps of the modules affected by the
+            // changed candidates from the module map.
+            if (requirerList == null)
+            {
+                requirerList = getRequirers(candidatesMap);
+            }
+            for (Iterator iter = changedModules.iterator(); iter.hasNext(); )
+            {
+                moduleMap.remove(iter.next());
+            }
+            if (changedModules.size() > 0)
+            {
+                for (int i = 0; i < requirerList.size(); i++)
+                {
+                    moduleMap.remove(requirerList.get(i));
+                }
+            }
+            changedModules.clear();
 
             // Clear the cycle map.
             cycleMap.clear();
         }
     }
 
+    private static List getRequirers(Map candidatesMap)
+    {
+        List requirerList = new ArrayList();
+        for (Iterator iter = candidatesMap.entrySet().iterator(); iter.hasNext(); )
+        {
+            Map.Entry entry = (Map.Entry) iter.next();
+            List candSetList = (List) entry.getValue();
+            boolean requirer = false;
+            for (int csIdx = 0; !requirer && (csIdx < candSetList.size()); csIdx++)
+            {
+                CandidateSet cs = (CandidateSet) candSetList.get(csIdx);
+                for (int candIdx = 0; !requirer && (cs.m_candidates != null)
+                    && (candIdx < cs.m_candidates.length); candIdx++)
+                {
+                    requirer = cs.m_candidates[candIdx].m_capability
+                        .getNamespace().equals(ICapability.MODULE_NAMESPACE);
+                }
+            }
+            if (requirer)
+            {
+                requirerList.add(entry.getKey());
+            }
+        }
+        return requirerList;
+    }
+
+    private ResolveException createPermutationLimitException(
+        IModule[] rootModules, List candidatesList)
+    {
+        // Report the size of the search space and the requirements
+        // contributing most to it, to help diagnose the conflict.
+        double space = 1;
+        StringBuffer sb = new StringBuffer();
+        for (int i = 0; i < candidatesList.size(); i++)
+        {
+            List candSetList = (List) candidatesList.get(i);
+            for (int j = 0; j < candSetList.size(); j++)
+            {
+                CandidateSet cs = (CandidateSet) candSetList.get(j);
+                if ((cs.m_candidates != null) && (cs.m_candidates.length > 1))
+                {
+                    space *= cs.m_candidates.length;
+                    sb.append("\n    " + cs.m_module + ": " + cs.m_requirement
+                        + " has " + cs.m_candidates.length + " candidates");
+                }
+            }
+        }
+        m_logger.log(
+            Logger.LOG_WARNING,
+            "Resolving " + ((rootModules.length == 1)
+                ? rootModules[0].toString() : rootModules.length + " modules")
+            + " exceeded " + m_maxPermutations
+            + " candidate permutations out of " + (long) space
+            + "; the requirements with multiple candidates are:" + sb);
+        return new ResolveException(
+            "Unable to resolve due to constraint violation; gave up after "
+            + m_maxPermutations + " candidate permutations.", rootModules[0], null);
+    }
+
     /**
-     * This methd checks to see if the target module and any of the candidate
-     * modules to resolve its dependencies violate any singleton constraints.
+     * This methd checks to see if the target modules and any of the candidate
+     * modules to resolve their dependencies violate any singleton constraints.
      * Actually, it just creates a map of resolved singleton modules and then
      * delegates all checking to another recursive method.
      *
-     * @param targetModule the module that is the root of the tree of modules to check.
+     * @param targetModules the modules that are the roots of the trees of modules to check.
      * @param moduleMap a map to cache the package space of each module.
      * @param candidatesMap a map containing the all candidates to resolve all
      *        dependencies for all modules.
@@ -547,7 +932,7 @@ public class Resolver
      *         <tt>false</tt> otherwise.
     **/
     private boolean isSingletonConsistent(
-        ResolverState state, IModule targetModule, Map moduleMap, Map candidatesMap)
+        ResolverState state, IModule[] targetModules, Map moduleMap, Map candidatesMap)
     {
         // Create a map of all resolved singleton modules.
         Map singletonMap = new HashMap();
@@ -561,8 +946,18 @@ public class Resolver
             }
         }
 
-        return areCandidatesSingletonConsistent(
-            state, targetModule, singletonMap, moduleMap, new HashMap(), candidatesMap);
+        // The singleton and cycle maps are shared by all target modules,
+        // since their candidates are resolved together.
+        Map cycleMap = new HashMap();
+        for (int i = 0; i < targetModules.length; i++)
+        {
+            if (!areCandidatesSingletonConsistent(
+                state, targetModules[i], singletonMap, moduleMap, cycleMap, candidatesMap))
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -675,6 +1070,19 @@ public class Resolver
         return false;
     }
 
+    private boolean isClassSpaceConsistent(
+        IModule[] targetModules, Map moduleMap, Map cycleMap, Map candidatesMap)
+    {
+        for (int i = 0; i < targetModules.length; i++)
+        {
+            if (!isClassSpaceConsistent(targetModules[i], moduleMap, cycleMap, candidatesMap))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private boolean isClassSpaceConsistent(
         IModule targetModule, Map moduleMap, Map cycleMap, Map candidatesMap)
     {
@@ -809,7 +1217,7 @@ public class Resolver
                             }
                             rp.m_cs.m_candidates[rp.m_cs.m_candidates.length - 1] = first;
                             rp.m_cs.m_rotated++;
-                            m_candidatesRotated = true;
+                            m_rotatedCandSet = rp.m_cs;
                         }
 
                         return false;
@@ -1430,7 +1838,8 @@ public class Resolver
         return calculateExportedAndReexportedPackages(psTarget, candidatesMap, cycleMap);
     }
 
-    private static void incrementCandidateConfiguration(List resolverList)
+    private static void incrementCandidateConfiguration(
+        List resolverList, Set changedModules)
         throws ResolveException
     {
         for (int i = 0; i < resolverList.size(); i++)
@@ -1444,14 +1853,16 @@ public class Resolver
                 if ((cs.m_idx + 1) < cs.m_candidates.length)
                 {
                     cs.m_idx++;
+                    changedModules.add(cs.m_module);
                     return;
                 }
                 // If the index will overflow the candidate array bounds,
                 // then set the index back to zero and try to increment
                 // the next candidate.
-                else
+                else if (cs.m_idx != 0)
                 {
                     cs.m_idx = 0;
+                    changedModules.add(cs.m_module);
                 }
             }
         }
@@ -1591,4 +2002,15 @@ public class Resolver
         PackageSource[] getResolvedCandidates(IRequirement req);
         PackageSource[] getUnresolvedCandidates(IRequirement req);
     }
+
+    // A group of root modules whose class space is searched independently
+    // of the other groups, along with the unresolved modules reachable from
+    // them and the outcome of the search.
+    private static class ResolverGroup
+    {
+        public final List m_rootList = new ArrayList();
+        public final Set m_modules = new HashSet();
+        public final Map m_candidatesMap = new HashMap();
+        public ResolveException m_exception = null;
+    }
 }
\ No newline at end of file
@@ -24,10 +24,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.EventListener;
 import java.util.EventObject;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
+import org.apache.felix.framework.FilterImpl;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
 import org.osgi.framework.AllServiceListener;
@@ -66,110 +69,209 @@ public class EventDispatcher
     private Object[] m_bundleListeners = m_emptyList;
     private Object[] m_syncBundleListeners = m_emptyList;
     private Object[] m_serviceListeners = m_emptyList;
-
-    // A single thread is used to deliver events for all dispatchers.
-    private static Thread m_thread = null;
-    private static String m_threadLock = new String("thread lock");
-    private static int m_references = 0;
-    private static volatile boolean m_stopping = false;
-
-    // List of requests.
-    private static final ArrayList m_requestList = new ArrayList();
-    // Pooled requests to avoid memory allocation.
-    private static final ArrayList m_requestPool = new ArrayList();
-
-    private EventDispatcher(Logger logger)
+    // Service listeners whose filter requires a single objectClass are
+    // additionally indexed by that objectClass, the remaining ones are
+    // kept in the residual list; the arrays have the same layout as the
+    // above listener arrays.
+    private final Map m_serviceListenerIndex = new HashMap();
+    private Object[] m_residualServiceListeners = m_emptyList;
+
+    // Event types.
+    private static final int FRAMEWORK_EVENT = 0;
+    private static final int BUNDLE_EVENT = 1;
+    private static final int SERVICE_EVENT = 2;
+
+    // Worker threads used to deliver asynchronous events, each with its
+    // own queue; a given listener is always served by the same worker,
+    // which preserves the order of events delivered to each listener.
+    private final Worker[] m_workers;
+    private volatile boolean m_stopping = false;
+
+    private EventDispatcher(Logger logger, int threads, int queueSize)
     {
         m_logger = logger;
+        m_workers = new Worker[threads];
+        for (int i = 0; i < m_workers.length; i++)
+        {
+            m_workers[i] = new Worker(logger,
+                (threads == 1) ? "FelixDispatchQueue" : "FelixDispatchQueue-" + i,
+                queueSize);
+        }
     }
 
     public static EventDispatcher start(Logger logger)
     {
-        EventDispatcher eventDispatcher = new EventDispatcher(logger);
+        return start(logger, null);
+    }
 
-        synchronized (m_threadLock)
+    /**
+     * Creates and starts an event dispatcher configured by the specified
+     * configuration properties. The number of threads delivering
+     * asynchronous events is configured with the
+     * <tt>felix.eventdispatcher.threads</tt> property, which defaults to
+     * one. The capacity of each thread's event queue is configured with
+     * the <tt>felix.eventdispatcher.queuesize</tt> property, which defaults
+     * to zero for an unbounded queue.
+     * @param logger the logger for dispatch errors.
+     * @param configMap the framework configuration properties or <tt>null</tt>.
+     * @return the started event dispatcher.
+    **/
+    public static EventDispatcher start(Logger logger, Map configMap)
+    {
+        int threads = getIntProperty(
+            logger, configMap, FelixConstants.EVENT_DISPATCHER_THREADS_PROP, 1);
+        int queueSize = getIntProperty(
+            logger, configMap, FelixConstants.EVENT_DISPATCHER_QUEUESIZE_PROP, 0);
+
+        EventDispatcher eventDispatcher = new EventDispatcher(
+            logger, Math.max(1, threads), Math.max(0, queueSize));
+        for (int i = 0; i < eventDispatcher.m_workers.length; i++)
         {
-            // Start event dispatching thread if necessary.
-            if (m_thread == null || !m_thread.isAlive())
-            {
-                m_stopping = false;
-
-                m_thread = new Thread(new Runnable() {
-                    public void run()
-                    {
-                        try
-                        {
-                            EventDispatcher.run();
-                        }
-                        finally
-                        {
-                            // Ensure we update state even if stopped by external cause
-                            // e.g. an Applet VM forceably killing threads
-                            synchronized (m_threadLock)
-                            {
-                                m_thread = null;
-                                m_stopping = false;
-                                m_references = 0;
-                                m_threadLock.notifyAll();
-                            }
-                        }
-                    }
-                }, "FelixDispatchQueue");
-                m_thread.start();
-            }
-
-            // reference counting and flags
-            m_references++;
+            eventDispatcher.m_workers[i].start();
         }
 
         return eventDispatcher;
     }
 
+    private static int getIntProperty(Logger logger, Map configMap, String key, int dflt)
+    {
+        String s = (configMap == null) ? null : (String) configMap.get(key);
+        if (s != null)
+        {
+            try
+            {
+                return Integer.parseInt(s.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.log(Logger.LOG_WARNING, "Invalid value for " + key + ": " + s);
+            }
+        }
+        return dflt;
+    }
+
     public void setServiceRegistry(ServiceRegistry sr)
     {
         m_serviceRegistry = sr;
     }
 
-    public static void shutdown()
+    /**
+     * Stops the dispatcher's worker threads after they have delivered all
+     * queued events and waits for them to finish. Asynchronous events
+     * fired after this method is called are ignored.
+    **/
+    public void shutdown()
     {
-        synchronized (m_threadLock)
+        synchronized (this)
         {
-            // Return if already dead or stopping.
-            if (m_thread == null || m_stopping)
+            // Return if already stopping.
+            if (m_stopping)
             {
                 return;
             }
-
-            // decrement use counter, don't continue if there are users
-            m_references--;
-            if (m_references > 0)
-            {
-                return;
-            }
-
             m_stopping = true;
         }
 
-        // Signal dispatch thread.
-        synchronized (m_requestList)
+        // Signal the worker threads.
+        for (int i = 0; i < m_workers.length; i++)
         {
-            m_requestList.notify();
+            m_workers[i].shutdown();
         }
 
-        // Use separate lock for shutdown to prevent any chance of nested lock deadlock
-        synchronized (m_threadLock)
+        // Wait for them to finish, unless we are called from one of them.
+        for (int i = 0; i < m_workers.length; i++)
         {
-            while (m_thread != null)
+            while (m_workers[i].isAlive() && (m_workers[i] != Thread.currentThread()))
             {
                 try
                 {
-                    m_threadLock.wait();
+                    m_workers[i].join();
                 }
                 catch (InterruptedException ex)
                 {
                 }
             }
         }
+
+        m_logger.log(Logger.LOG_DEBUG,
+            "EventDispatcher: Delivered " + getDispatchedEventCount()
+            + " asynchronous events with a total latency of " + getTotalLatency()
+            + " ms, a maximum latency of " + getMaxLatency()
+            + " ms and a maximum queue depth of " + getMaxQueueDepth() + ".");
+    }
+
+    /**
+     * Returns the number of asynchronous event deliveries currently queued.
+     * When there are several worker threads, an event is counted once for
+     * each worker that delivers it.
+     * @return the current queue depth.
+    **/
+    public int getQueueDepth()
+    {
+        int depth = 0;
+        for (int i = 0; i < m_workers.length; i++)
+        {
+            depth += m_workers[i].getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the highest queue depth reached by any worker thread.
+     * @return the maximum queue depth.
+    **/
+    public int getMaxQueueDepth()
+    {
+        int depth = 0;
+        for (int i = 0; i < m_workers.length; i++)
+        {
+            depth = Math.max(depth, m_workers[i].getMaxQueueDepth());
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of asynchronous event deliveries performed so far.
+     * @return the number of delivered events.
+    **/
+    public long getDispatchedEventCount()
+    {
+        long count = 0;
+        for (int i = 0; i < m_workers.length; i++)
+        {
+            count += m_workers[i].getDispatchedEventCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total time in milliseconds that delivered asynchronous
+     * events spent waiting in a queue before being delivered.
+     * @return the total queue latency in milliseconds.
+    **/
+    public long getTotalLatency()
+    {
+        long latency = 0;
+        for (int i = 0; i < m_workers.length; i++)
+        {
+            latency += m_workers[i].getTotalLatency();
+        }
+        return latency;
+    }
+
+    /**
+     * Returns the longest time in milliseconds that a delivered asynchronous
+     * event spent waiting in a queue before being delivered.
+     * @return the maximum queue latency in milliseconds.
+    **/
+    public long getMaxLatency()
+    {
+        long latency = 0;
+        for (int i = 0; i < m_workers.length; i++)
+        {
+            latency = Math.max(latency, m_workers[i].getMaxLatency());
+        }
+        return latency;
     }
 
     public void addListener(Bundle bundle, Class clazz, EventListener l, Filter filter)
@@ -274,6 +376,8 @@ public class EventDispatcher
             else if (clazz == ServiceListener.class)
             {
                 m_serviceListeners = listeners;
+                addToServiceListenerIndex(
+                    listeners, listeners.length - LISTENER_ARRAY_INCREMENT);
             }
         }
     }
@@ -336,6 +440,8 @@ public class EventDispatcher
                     if (ServiceListener.class == clazz)
                     {
                         listenerInfo = wrapListener(listeners, i);
+                        removeFromServiceListenerIndex(
+                            bundle, l, (Filter) listeners[i + LISTENER_FILTER_OFFSET]);
                     }
                     idx = i;
                     break;
@@ -520,7 +626,10 @@ public class EventDispatcher
                     else if (clazz == ServiceListener.class)
                     {
                         // The spec says to update the filter in this case.
+                        removeFromServiceListenerIndex(
+                            bundle, l, (Filter) listeners[i + LISTENER_FILTER_OFFSET]);
                         listeners[i + LISTENER_FILTER_OFFSET] = filter;
+                        addToServiceListenerIndex(listeners, i);
                     }
                     return true;
                 }
@@ -579,7 +688,7 @@ public class EventDispatcher
         }
 
         // Fire all framework listeners on a separate thread.
-        fireEventAsynchronously(m_logger, Request.FRAMEWORK_EVENT, listeners, event);
+        fireEventAsynchronously(m_logger, FRAMEWORK_EVENT, listeners, event);
     }
 
     public void fireBundleEvent(BundleEvent event)
@@ -594,7 +703,7 @@ public class EventDispatcher
         }
 
         // Fire synchronous bundle listeners immediately on the calling thread.
-        fireEventImmediately(m_logger, Request.BUNDLE_EVENT, syncListeners, event);
+        fireEventImmediately(m_logger, BUNDLE_EVENT, syncListeners, event);
 
         // The spec says that asynchronous bundle listeners do not get events
         // of types STARTING or STOPPING.
@@ -602,17 +711,30 @@ public class EventDispatcher
             (event.getType() != BundleEvent.STOPPING))
         {
             // Fire asynchronous bundle listeners on a separate thread.
-            fireEventAsynchronously(m_logger, Request.BUNDLE_EVENT, listeners, event);
+            fireEventAsynchronously(m_logger, BUNDLE_EVENT, listeners, event);
         }
     }
 
     public void fireServiceEvent(ServiceEvent event)
     {
-        // Take a snapshot of the listener array.
+        // Take a snapshot of the listeners that may be interested in
+        // the event, which are the residual listeners plus the listeners
+        // indexed under one of the service's interfaces.
+        String[] objectClass = (String[])
+            event.getServiceReference().getProperty(Constants.OBJECTCLASS);
         Object[] listeners = null;
         synchronized (this)
         {
-            listeners = m_serviceListeners;
+            listeners = m_residualServiceListeners;
+            for (int i = 0; (objectClass != null) && (i < objectClass.length); i++)
+            {
+                Object[] indexed = (Object[]) m_serviceListenerIndex.get(objectClass[i]);
+                if ((indexed != null) && !isDuplicate(objectClass, i))
+                {
+                    listeners = (listeners.length == 0)
+                        ? indexed : concatListeners(listeners, indexed);
+                }
+            }
         }
 
         if (m_serviceRegistry != null)
@@ -632,47 +754,169 @@ public class EventDispatcher
         }
 
         // Fire all service events immediately on the calling thread.
-        fireEventImmediately(m_logger, Request.SERVICE_EVENT, listeners, event);
+        fireEventImmediately(m_logger, SERVICE_EVENT, listeners, event);
     }
 
-    private void fireEventAsynchronously(
-        Logger logger, int type, Object[] listeners, EventObject event)
+    /**
+     * Adds the service listener at the specified offset of the specified
+     * listener array to the objectClass index or to the residual list,
+     * depending on its filter. This method must be called while holding
+     * the dispatcher lock.
+     * @param listeners the listener array containing the listener.
+     * @param offset the offset of the listener in the array.
+    **/
+    private void addToServiceListenerIndex(Object[] listeners, int offset)
     {
-        //TODO: should possibly check this within thread lock, seems to be ok though without
-        // If dispatch thread is stopped, then ignore dispatch request.
-        if (m_stopping || m_thread == null)
+        String key = getServiceListenerIndexKey(
+            (Filter) listeners[offset + LISTENER_FILTER_OFFSET]);
+        if (key == null)
         {
-            return;
+            m_residualServiceListeners = concatListeners(
+                m_residualServiceListeners, listeners, offset);
+        }
+        else
+        {
+            Object[] indexed = (Object[]) m_serviceListenerIndex.get(key);
+            m_serviceListenerIndex.put(key, concatListeners(
+                (indexed == null) ? m_emptyList : indexed, listeners, offset));
         }
+    }
 
-        // First get a request from the pool or create one if necessary.
-        Request req = null;
-        synchronized (m_requestPool)
+    /**
+     * Removes the specified service listener from the objectClass index
+     * or from the residual list, depending on the specified filter, which
+     * must be the filter the listener was indexed with. This method must
+     * be called while holding the dispatcher lock.
+     * @param bundle the bundle that registered the listener.
+     * @param l the listener to remove.
+     * @param filter the filter of the listener.
+    **/
+    private void removeFromServiceListenerIndex(
+        Bundle bundle, EventListener l, Filter filter)
+    {
+        String key = getServiceListenerIndexKey(filter);
+        if (key == null)
+        {
+            m_residualServiceListeners = removeListenerEntry(
+                m_residualServiceListeners, bundle, l);
+        }
+        else
         {
-            if (m_requestPool.size() > 0)
+            Object[] indexed = removeListenerEntry(
+                (Object[]) m_serviceListenerIndex.get(key), bundle, l);
+            if (indexed.length == 0)
             {
-                req = (Request) m_requestPool.remove(0);
+                m_serviceListenerIndex.remove(key);
             }
             else
             {
-                req = new Request();
+                m_serviceListenerIndex.put(key, indexed);
+            }
+        }
+    }
+
+    private static String getServiceListenerIndexKey(Filter filter)
+    {
+        return (filter instanceof FilterImpl)
+            ? ((FilterImpl) filter).getObjectClass() : null;
+    }
+
+    private static boolean isDuplicate(String[] objectClass, int idx)
+    {
+        for (int i = 0; i < idx; i++)
+        {
+            if (objectClass[i].equals(objectClass[idx]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object[] concatListeners(Object[] listeners, Object[] others)
+    {
+        Object[] newList = new Object[listeners.length + others.length];
+        System.arraycopy(listeners, 0, newList, 0, listeners.length);
+        System.arraycopy(others, 0, newList, listeners.length, others.length);
+        return newList;
+    }
+
+    private static Object[] concatListeners(Object[] listeners, Object[] src, int offset)
+    {
+        Object[] newList = new Object[listeners.length + LISTENER_ARRAY_INCREMENT];
+        System.arraycopy(listeners, 0, newList, 0, listeners.length);
+        System.arraycopy(src, offset, newList, listeners.length, LISTENER_ARRAY_INCREMENT);
+        return newList;
+    }
+
+    private static Object[] removeListenerEntry(
+        Object[] listeners, Bundle bundle, EventListener l)
+    {
+        for (int i = 0; (listeners != null) && (i < listeners.length); i += LISTENER_ARRAY_INCREMENT)
+        {
+            if (listeners[i + LISTENER_BUNDLE_OFFSET].equals(bundle) &&
+                (listeners[i + LISTENER_OBJECT_OFFSET] == l))
+            {
+                Object[] newList = new Object[listeners.length - LISTENER_ARRAY_INCREMENT];
+                System.arraycopy(listeners, 0, newList, 0, i);
+                System.arraycopy(
+                    listeners, i + LISTENER_ARRAY_INCREMENT,
+                    newList, i, newList.length - i);
+                return newList;
             }
         }
+        return (listeners == null) ? m_emptyList : listeners;
+    }
 
-        // Initialize dispatch request.
-        req.m_logger = logger;
-        req.m_type = type;
-        req.m_listeners = listeners;
-        req.m_event = event;
+    private void fireEventAsynchronously(
+        Logger logger, int type, Object[] listeners, EventObject event)
+    {
+        // If dispatcher is stopped, then ignore dispatch request.
+        if (m_stopping || (listeners.length == 0))
+        {
+            return;
+        }
 
-        // Lock the request list.
-        synchronized (m_requestList)
+        // With a single worker, it delivers to all listeners.
+        if (m_workers.length == 1)
+        {
+            m_workers[0].enqueue(type, listeners, event);
+            return;
+        }
+
+        // Otherwise, partition the listeners among the workers; the worker
+        // of a listener is derived from its identity, so events for the
+        // same listener are always delivered in order by the same worker.
+        int[] counts = new int[m_workers.length];
+        for (int i = 0; i < listeners.length; i += LISTENER_ARRAY_INCREMENT)
+        {
+            counts[getWorkerIndex(listeners[i + LISTENER_OBJECT_OFFSET])]++;
+        }
+        Object[][] partitions = new Object[m_workers.length][];
+        for (int i = 0; i < m_workers.length; i++)
         {
-            // Add our request to the list.
-            m_requestList.add(req);
-            // Notify the dispatch thread that there is work to do.
-            m_requestList.notify();
+            partitions[i] = new Object[counts[i] * LISTENER_ARRAY_INCREMENT];
+            counts[i] = 0;
         }
+        for (int i = 0; i < listeners.length; i += LISTENER_ARRAY_INCREMENT)
+        {
+            int idx = getWorkerIndex(listeners[i + LISTENER_OBJECT_OFFSET]);
+            System.arraycopy(
+                listeners, i, partitions[idx], counts[idx], LISTENER_ARRAY_INCREMENT);
+            counts[idx] += LISTENER_ARRAY_INCREMENT;
+        }
+        for (int i = 0; i < m_workers.length; i++)
+        {
+            if (partitions[i].length > 0)
+            {
+                m_workers[i].enqueue(type, partitions[i], event);
+            }
+        }
+    }
+
+    private int getWorkerIndex(Object listener)
+    {
+        return (System.identityHashCode(listener) & 0x7fffffff) % m_workers.length;
     }
 
     private static void fireEventImmediately(
@@ -691,15 +935,15 @@ public class EventDispatcher
                 Object acc = listeners[i + LISTENER_SECURITY_OFFSET];
                 try
                 {
-                    if (type == Request.FRAMEWORK_EVENT)
+                    if (type == FRAMEWORK_EVENT)
                     {
                         invokeFrameworkListenerCallback(bundle, l, event);
                     }
-                    else if (type == Request.BUNDLE_EVENT)
+                    else if (type == BUNDLE_EVENT)
                     {
                         invokeBundleListenerCallback(bundle, l, event);
                     }
-                    else if (type == Request.SERVICE_EVENT)
+                    else if (type == SERVICE_EVENT)
                     {
                         invokeServiceListenerCallback(bundle, l, filter, acc, event);
                     }
@@ -852,65 +1096,6 @@ public class EventDispatcher
         }
     }
 
-    /**
-     * This is the dispatching thread's main loop.
-    **/
-    private static void run()
-    {
-        Request req = null;
-        while (true)
-        {
-            // Lock the request list so we can try to get a
-            // dispatch request from it.
-            synchronized (m_requestList)
-            {
-                // Wait while there are no requests to dispatch. If the
-                // dispatcher thread is supposed to stop, then let the
-                // dispatcher thread exit the loop and stop.
-                while ((m_requestList.size() == 0) && !m_stopping)
-                {
-                    // Wait until some signals us for work.
-                    try
-                    {
-                        m_requestList.wait();
-                    }
-                    catch (InterruptedException ex)
-                    {
-                        // Not much we can do here except for keep waiting.
-                    }
-                }
-
-                // If there are no events to dispatch and shutdown
-                // has been called then exit, otherwise dispatch event.
-                if ((m_requestList.size() == 0) && (m_stopping))
-                {
-                    return;
-                }
-
-                // Get the dispatch request.
-                req = (Request) m_requestList.remove(0);
-            }
-
-            // Deliver event outside of synchronized block
-            // so that we don't block other requests from being
-            // queued during event processing.
-            // NOTE: We don't catch any exceptions here, because
-            // the invoked method shields us from exceptions by
-            // catching Throwables when it invokes callbacks.
-            fireEventImmediately(req.m_logger, req.m_type, req.m_listeners, req.m_event);
-
-            // Put dispatch request in cache.
-            synchronized (m_requestPool)
-            {
-                req.m_logger = null;
-                req.m_type = -1;
-                req.m_listeners = null;
-                req.m_event = null;
-                m_requestPool.add(req);
-            }
-        }
-    }
-
     static class ListenerBundleContextCollectionWrapper implements Collection
     {
         private Object[] m_listeners;
@@ -1106,15 +1291,190 @@ public class EventDispatcher
         }
     }
 
-    private static class Request
+    /**
+     * A worker thread delivering asynchronous events from its own queue.
+     * The queue is a ring buffer of pending deliveries, which is optionally
+     * bounded; when a bounded queue is full, threads firing events wait
+     * for space, except for worker threads themselves, since a listener
+     * firing an event would otherwise wait for its own worker.
+    **/
+    private static class Worker extends Thread
     {
-        public static final int FRAMEWORK_EVENT = 0;
-        public static final int BUNDLE_EVENT = 1;
-        public static final int SERVICE_EVENT = 2;
-
-        public Logger m_logger = null;
-        public int m_type = -1;
-        public Object[] m_listeners = null;
-        public EventObject m_event = null;
+        private final Logger m_logger;
+        private final int m_capacity;
+
+        // The queue of pending deliveries as parallel arrays.
+        private int[] m_types = new int[16];
+        private Object[][] m_listeners = new Object[16][];
+        private EventObject[] m_events = new EventObject[16];
+        private long[] m_times = new long[16];
+        private int m_head = 0;
+        private int m_size = 0;
+        private boolean m_stopping = false;
+
+        // Statistics.
+        private int m_maxSize = 0;
+        private long m_dispatched = 0;
+        private long m_totalLatency = 0;
+        private long m_maxLatency = 0;
+
+        Worker(Logger logger, String name, int capacity)
+        {
+            super(name);
+            m_logger = logger;
+            m_capacity = capacity;
+        }
+
+        synchronized void enqueue(int type, Object[] listeners, EventObject event)
+        {
+            // Wait for space in a full bounded queue.
+            while ((m_capacity > 0) && (m_size >= m_capacity) && !m_stopping
+                && !(Thread.currentThread() instanceof Worker))
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                }
+            }
+
+            if (m_stopping)
+            {
+                return;
+            }
+
+            // Grow the ring buffer if necessary.
+            if (m_size == m_types.length)
+            {
+                int oldLength = m_types.length;
+                int length = oldLength * 2;
+                m_types = (int[]) grow(m_types, new int[length], oldLength);
+                m_listeners = (Object[][]) grow(m_listeners, new Object[length][], oldLength);
+                m_events = (EventObject[]) grow(m_events, new EventObject[length], oldLength);
+                m_times = (long[]) grow(m_times, new long[length], oldLength);
+                m_head = 0;
+            }
+
+            int idx = (m_head + m_size) % m_types.length;
+            m_types[idx] = type;
+            m_listeners[idx] = listeners;
+            m_events[idx] = event;
+            m_times[idx] = System.currentTimeMillis();
+            m_size++;
+            m_maxSize = Math.max(m_maxSize, m_size);
+
+            // Notify the worker that there is work to do.
+            notifyAll();
+        }
+
+        private Object grow(Object src, Object dst, int oldLength)
+        {
+            // Copy the queued elements in order to the start of the new array.
+            int first = Math.min(m_size, oldLength - m_head);
+            System.arraycopy(src, m_head, dst, 0, first);
+            System.arraycopy(src, 0, dst, first, m_size - first);
+            return dst;
+        }
+
+        synchronized void shutdown()
+        {
+            m_stopping = true;
+            notifyAll();
+        }
+
+        synchronized int getQueueDepth()
+        {
+            return m_size;
+        }
+
+        synchronized int getMaxQueueDepth()
+        {
+            return m_maxSize;
+        }
+
+        synchronized long getDispatchedEventCount()
+        {
+            return m_dispatched;
+        }
+
+        synchronized long getTotalLatency()
+        {
+            return m_totalLatency;
+        }
+
+        synchronized long getMaxLatency()
+        {
+            return m_maxLatency;
+        }
+
+        /**
+         * This is the worker thread's main loop.
+        **/
+        public void run()
+        {
+            while (true)
+            {
+                int type;
+                Object[] listeners;
+                EventObject event;
+
+                // Lock the queue so we can try to get a dispatch request from it.
+                synchronized (this)
+                {
+                    // Wait while there are no requests to dispatch. If the
+                    // worker thread is supposed to stop, then let the
+                    // worker thread exit the loop and stop.
+                    while ((m_size == 0) && !m_stopping)
+                    {
+                        // Wait until some signals us for work.
+                        try
+                        {
+                            wait();
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            // Not much we can do here except for keep waiting.
+                        }
+                    }
+
+                    // If there are no events to dispatch and shutdown
+                    // has been called then exit, otherwise dispatch event.
+                    if (m_size == 0)
+                    {
+                        return;
+                    }
+
+                    // Get the dispatch request.
+                    type = m_types[m_head];
+                    listeners = m_listeners[m_head];
+                    event = m_events[m_head];
+                    long latency = System.currentTimeMillis() - m_times[m_head];
+                    m_listeners[m_head] = null;
+                    m_events[m_head] = null;
+                    m_head = (m_head + 1) % m_types.length;
+                    m_size--;
+
+                    m_dispatched++;
+                    m_totalLatency += latency;
+                    m_maxLatency = Math.max(m_maxLatency, latency);
+
+                    // Notify threads waiting for space in a bounded queue.
+                    if (m_capacity > 0)
+                    {
+                        notifyAll();
+                    }
+                }
+
+                // Deliver event outside of synchronized block
+                // so that we don't block other requests from being
+                // queued during event processing.
+                // NOTE: We don't catch any exceptions here, because
+                // the invoked method shields us from exceptions by
+                // catching Throwables when it invokes callbacks.
+                fireEventImmediately(m_logger, type, listeners, event);
+            }
+        }
     }
-}
\ No newline at end of file
+}
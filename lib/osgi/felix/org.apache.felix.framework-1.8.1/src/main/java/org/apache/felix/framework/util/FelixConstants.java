@@ -49,6 +49,11 @@ public interface FelixConstants extends org.osgi.framework.Constants
     public static final String BUNDLE_STARTLEVEL_PROP
         = "felix.startlevel.bundle";
     public static final String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
+    public static final String EVENT_DISPATCHER_THREADS_PROP = "felix.eventdispatcher.threads";
+    public static final String EVENT_DISPATCHER_QUEUESIZE_PROP = "felix.eventdispatcher.queuesize";
+    public static final String RESOLVER_MAX_PERMUTATIONS_PROP = "felix.resolver.maxpermutations";
+    public static final String RESOLVER_THREADS_PROP = "felix.resolver.threads";
+    public static final String STARTLEVEL_THREADS_PROP = "felix.startlevel.threads";
 
     // THESE CAN BE DELETED ONCE WE HAVE COMPLETE FRAGMENT SUPPORT.
     public static final String FRAGMENT_VALIDATION_PROP = "felix.fragment.validation";
@@ -363,6 +363,32 @@ public class SecureAction
         }
     }
 
+    public RandomAccessFile openRandomAccessFile(File file, String mode)
+        throws IOException
+    {
+        if (System.getSecurityManager() != null)
+        {
+            try
+            {
+                Actions actions = (Actions) m_actions.get();
+                actions.set(Actions.OPEN_RANDOMACCESSFILE_ACTION, file, mode);
+                return (RandomAccessFile) AccessController.doPrivileged(actions, m_acc);
+            }
+            catch (PrivilegedActionException ex)
+            {
+                if (ex.getException() instanceof IOException)
+                {
+                    throw (IOException) ex.getException();
+                }
+                throw (RuntimeException) ex.getException();
+            }
+        }
+        else
+        {
+            return new RandomAccessFile(file, mode);
+        }
+    }
+
     public InputStream getURLConnectionInputStream(URLConnection conn)
         throws IOException
     {
@@ -962,6 +988,7 @@ public class SecureAction
         public static final int GET_DECLAREDMETHOD_ACTION = 32;
         public static final int SET_ACCESSIBLE_ACTION = 33;
         public static final int INVOKE_DIRECTMETHOD_ACTION = 34;
+        public static final int OPEN_RANDOMACCESSFILE_ACTION = 35;
 
         private int m_action = -1;
         private Object m_arg1 = null;
@@ -1088,6 +1115,10 @@ public class SecureAction
             {
                 return new FileOutputStream((File) arg1);
             }
+            else if (action == OPEN_RANDOMACCESSFILE_ACTION)
+            {
+                return new RandomAccessFile((File) arg1, (String) arg2);
+            }
             else if (action == DELETE_FILE_ACTION)
             {
                 return ((File) arg1).delete() ? Boolean.TRUE : Boolean.FALSE;
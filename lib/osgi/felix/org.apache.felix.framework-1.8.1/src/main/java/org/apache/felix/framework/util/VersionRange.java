@@ -27,6 +27,9 @@ public class VersionRange
     private Version m_high = null;
     private boolean m_isHighInclusive = false;
     private String m_toString = null;
+    // Packed keys of the low and high versions; see pack().
+    private final long m_lowKey;
+    private final long m_highKey;
     public static final VersionRange infiniteRange = new VersionRange(Version.emptyVersion, true, null, true);
 
     public VersionRange(Version low, boolean isLowInclusive,
@@ -36,6 +39,8 @@ public class VersionRange
         m_isLowInclusive = isLowInclusive;
         m_high = high;
         m_isHighInclusive = isHighInclusive;
+        m_lowKey = pack(low);
+        m_highKey = (high == null) ? UNPACKED : pack(high);
     }
 
     public Version getLow()
@@ -60,24 +65,75 @@ public class VersionRange
 
     public boolean isInRange(Version version)
     {
+        return isInRange(pack(version), version);
+    }
+
+    /**
+     * Checks whether the specified version is in this range, using its
+     * precomputed packed key for the comparisons with the range bounds.
+     * @param key the packed key of the version, as returned by <tt>pack()</tt>.
+     * @param version the version.
+     * @return <tt>true</tt> if the version is in this range, <tt>false</tt> otherwise.
+    **/
+    public boolean isInRange(long key, Version version)
+    {
+        int cmp = compare(key, version, m_lowKey, m_low);
         // We might not have an upper end to the range.
         if (m_high == null)
         {
-            return (version.compareTo(m_low) >= 0);
+            return (cmp >= 0);
         }
-        else if (isLowInclusive() && isHighInclusive())
+        else if ((cmp < 0) || ((cmp == 0) && !m_isLowInclusive))
         {
-            return (version.compareTo(m_low) >= 0) && (version.compareTo(m_high) <= 0);
+            return false;
         }
-        else if (isHighInclusive())
+        cmp = compare(key, version, m_highKey, m_high);
+        return (cmp < 0) || ((cmp == 0) && m_isHighInclusive);
+    }
+
+    // Key of versions whose components do not fit in a packed key.
+    public static final long UNPACKED = -1L;
+
+    /**
+     * Packs the major, minor, and micro components of the specified version
+     * into a single long, such that comparing the keys of two versions
+     * compares their components. The major and minor components must be
+     * less than 2^16 and the micro component less than 2^31, which leaves
+     * room for date-based micro versions. The qualifier is not part of the
+     * key, so equal keys must be further compared by qualifier.
+     * @param version the version to pack.
+     * @return the packed key or <tt>UNPACKED</tt> if a component is too large.
+    **/
+    public static long pack(Version version)
+    {
+        long major = version.getMajor();
+        long minor = version.getMinor();
+        long micro = version.getMicro();
+        if ((major > 0xffffL) || (minor > 0xffffL) || (micro > 0x7fffffffL))
         {
-            return (version.compareTo(m_low) > 0) && (version.compareTo(m_high) <= 0);
+            return UNPACKED;
         }
-        else if (isLowInclusive())
+        return (major << 47) | (minor << 31) | micro;
+    }
+
+    /**
+     * Compares two versions using their packed keys, falling back to
+     * comparing the versions themselves if their keys are equal or
+     * if one of them could not be packed.
+     * @param key1 the packed key of the first version.
+     * @param version1 the first version.
+     * @param key2 the packed key of the second version.
+     * @param version2 the second version.
+     * @return a negative integer, zero, or a positive integer as the first
+     *         version is less than, equal to, or greater than the second.
+    **/
+    public static int compare(long key1, Version version1, long key2, Version version2)
+    {
+        if ((key1 != UNPACKED) && (key2 != UNPACKED) && (key1 != key2))
         {
-            return (version.compareTo(m_low) >= 0) && (version.compareTo(m_high) < 0);
+            return (key1 < key2) ? -1 : 1;
         }
-        return (version.compareTo(m_low) > 0) && (version.compareTo(m_high) < 0);
+        return version1.compareTo(version2);
     }
 
     public static VersionRange parse(String range)
@@ -0,0 +1,416 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.ldap;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A matcher is the compiled form of a parsed LDAP filter program. Instead
+ * of interpreting the program's operators with an operand stack, each
+ * filter node is represented by a specialized matcher object, which makes
+ * evaluating a filter against a set of attributes free of allocations in
+ * the common case. Comparison operands are coerced to the type of the
+ * attribute value once and then reused for all subsequent evaluations
+ * against values of the same type. Matchers are immutable, apart from
+ * this coercion cache, and can be shared between threads. Use
+ * <tt>Parser.compile()</tt> to create a matcher from a parsed program.
+**/
+public abstract class Matcher
+{
+    private static final Class[] STRING_CLASS = new Class[] { String.class };
+
+    /**
+     * Evaluates this matcher using the attributes of the specified mapper.
+     * A comparison involving an attribute that does not exist evaluates
+     * to <tt>false</tt>.
+     * @param mapper the mapper used to look up attribute values.
+     * @return <tt>true</tt> if the attributes match, <tt>false</tt> otherwise.
+     * @throws EvaluationException if an attribute value cannot be compared.
+    **/
+    public abstract boolean match(Mapper mapper) throws EvaluationException;
+
+    /**
+     * Returns the service interface name that the objectClass attribute
+     * must contain for this matcher to match, if there is a single such
+     * name that can be determined without evaluating the matcher.
+     * @return the required objectClass name or <tt>null</tt> if the
+     *         matcher does not constrain the objectClass attribute to
+     *         a single name.
+    **/
+    public String getObjectClass()
+    {
+        return null;
+    }
+
+    static final class AndMatcher extends Matcher
+    {
+        private final Matcher[] m_operands;
+
+        AndMatcher(Matcher[] operands)
+        {
+            m_operands = operands;
+        }
+
+        public boolean match(Mapper mapper) throws EvaluationException
+        {
+            for (int i = 0; i < m_operands.length; i++)
+            {
+                if (!m_operands[i].match(mapper))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public String getObjectClass()
+        {
+            // Any operand that constrains the objectClass
+            // constrains the conjunction as well.
+            for (int i = 0; i < m_operands.length; i++)
+            {
+                String objectClass = m_operands[i].getObjectClass();
+                if (objectClass != null)
+                {
+                    return objectClass;
+                }
+            }
+            return null;
+        }
+    }
+
+    static final class OrMatcher extends Matcher
+    {
+        private final Matcher[] m_operands;
+
+        OrMatcher(Matcher[] operands)
+        {
+            m_operands = operands;
+        }
+
+        public boolean match(Mapper mapper) throws EvaluationException
+        {
+            for (int i = 0; i < m_operands.length; i++)
+            {
+                if (m_operands[i].match(mapper))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class NotMatcher extends Matcher
+    {
+        private final Matcher m_operand;
+
+        NotMatcher(Matcher operand)
+        {
+            m_operand = operand;
+        }
+
+        public boolean match(Mapper mapper) throws EvaluationException
+        {
+            return !m_operand.match(mapper);
+        }
+    }
+
+    static final class ObjectClassMatcher extends Matcher
+    {
+        private final String m_target;
+
+        ObjectClassMatcher(String target)
+        {
+            m_target = target;
+        }
+
+        public String getObjectClass()
+        {
+            return m_target;
+        }
+
+        public boolean match(Mapper mapper) throws EvaluationException
+        {
+            String[] objectClass = (String[]) mapper.lookup("objectClass");
+            for (int i = 0; (objectClass != null) && (i < objectClass.length); i++)
+            {
+                if (m_target.equals(objectClass[i]))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class PresentMatcher extends Matcher
+    {
+        private final String m_attr;
+
+        PresentMatcher(String attr)
+        {
+            m_attr = attr;
+        }
+
+        public boolean match(Mapper mapper) throws EvaluationException
+        {
+            return (mapper.lookup(m_attr) != null);
+        }
+    }
+
+    static final class SubStringMatcher extends Matcher
+    {
+        private final String m_attr;
+        private final String[] m_pieces;
+
+        SubStringMatcher(String attr, String[] pieces)
+        {
+            m_attr = attr;
+            m_pieces = pieces;
+        }
+
+        public boolean match(Mapper mapper) throws EvaluationException
+        {
+            Object value = mapper.lookup(m_attr);
+            if (value == null)
+            {
+                return false;
+            }
+            // The value can either be a string or an array of strings.
+            else if (value instanceof String)
+            {
+                return check((String) value);
+            }
+            else if (value instanceof String[])
+            {
+                // If one element of the array matches, then it is a match.
+                String[] values = (String[]) value;
+                for (int i = 0; i < values.length; i++)
+                {
+                    if (check(values[i]))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            throw new EvaluationException(
+                "SUBSTRING: unsupported type " + value.getClass().getName(),
+                value.getClass());
+        }
+
+        private boolean check(String s)
+        {
+            // Walk the pieces to match the string. There are implicit
+            // stars between each piece, and the first and last pieces
+            // might be "" to anchor the match.
+            int len = m_pieces.length;
+            int index = 0;
+            for (int i = 0; i < len; i++)
+            {
+                String piece = m_pieces[i];
+                // This is the last piece.
+                if (i == len - 1)
+                {
+                    return s.endsWith(piece);
+                }
+                // Initial non-star piece.
+                else if (i == 0)
+                {
+                    if (!s.startsWith(piece))
+                    {
+                        return false;
+                    }
+                }
+                else
+                {
+                    index = s.indexOf(piece, index);
+                    if (index < 0)
+                    {
+                        return false;
+                    }
+                }
+                // Start beyond the matching piece.
+                index += piece.length();
+            }
+            return false;
+        }
+    }
+
+    static final class CompareMatcher extends Matcher
+    {
+        private final String m_attr;
+        private final String m_value;
+        private final int m_operator;
+        private final Boolean m_booleanValue;
+        // The comparison operand coerced to the type of the most
+        // recently compared attribute value.
+        private volatile Coercion m_coercion = null;
+
+        CompareMatcher(String attr, String value, int operator)
+        {
+            m_attr = attr;
+            m_value = value;
+            m_operator = operator;
+            m_booleanValue = Boolean.valueOf(value);
+        }
+
+        public boolean match(Mapper mapper) throws EvaluationException
+        {
+            Object lhs = mapper.lookup(m_attr);
+            return (lhs != null) && compare(lhs);
+        }
+
+        private boolean compare(Object lhs) throws EvaluationException
+        {
+            // Optimize the common case of strings by checking
+            // for them directly.
+            if (lhs instanceof String)
+            {
+                if (m_operator == Parser.APPROX)
+                {
+                    return Parser.compareToApprox(lhs, m_value);
+                }
+                return compareResult(((String) lhs).compareTo(m_value));
+            }
+            else if (lhs instanceof Comparable)
+            {
+                Coercion coercion = coerce(lhs.getClass());
+                if (coercion.m_value == null)
+                {
+                    throw new EvaluationException(coercion.m_error);
+                }
+                if (m_operator == Parser.APPROX)
+                {
+                    return Parser.compareToApprox(lhs, coercion.m_value);
+                }
+                return compareResult(
+                    ((Comparable) lhs).compareTo(coercion.m_value));
+            }
+
+            Class lhsClass = lhs.getClass();
+
+            // If LHS is an array, then compare each element
+            // of the array until a match is found.
+            if (lhsClass.isArray())
+            {
+                for (int i = 0, len = Array.getLength(lhs); i < len; i++)
+                {
+                    if (compare(Array.get(lhs, i)))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            // If LHS is a collection, then compare each element
+            // of the collection until a match is found.
+            else if (lhs instanceof Collection)
+            {
+                for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
+                {
+                    if (compare(iter.next()))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            // Boolean is the only primitive wrapper class that does not
+            // implement comparable; all operators are treated as equals.
+            else if (lhsClass == Boolean.class)
+            {
+                return lhs.equals(m_booleanValue);
+            }
+
+            // If the LHS is not a comparable, then try to use simple
+            // equals() comparison. If that fails, return false.
+            Coercion coercion = coerce(lhsClass);
+            return (coercion.m_value != null) && lhs.equals(coercion.m_value);
+        }
+
+        private boolean compareResult(int result)
+        {
+            switch (m_operator)
+            {
+                case Parser.GREATER_EQUAL:
+                    return (result >= 0);
+                case Parser.LESS_EQUAL:
+                    return (result <= 0);
+                default:
+                    return (result == 0);
+            }
+        }
+
+        /**
+         * Returns the comparison operand converted to the specified class,
+         * reusing the previous conversion if it was for the same class.
+         * The operand is converted by passing it to the class' String
+         * constructor; <tt>Character</tt> is a special case since it does
+         * not have such a constructor.
+        **/
+        private Coercion coerce(Class clazz)
+        {
+            Coercion coercion = m_coercion;
+            if ((coercion == null) || (coercion.m_class != clazz))
+            {
+                Object value = null;
+                String error = null;
+                try
+                {
+                    if (clazz == Character.class)
+                    {
+                        value = new Character(m_value.charAt(0));
+                    }
+                    else
+                    {
+                        value = clazz.getConstructor(STRING_CLASS)
+                            .newInstance(new Object[] { m_value });
+                    }
+                }
+                catch (Exception ex)
+                {
+                    error = "Could not instantiate class " + clazz.getName()
+                        + " with constructor String parameter "
+                        + m_value + " " + ex;
+                }
+                coercion = new Coercion(clazz, value, error);
+                m_coercion = coercion;
+            }
+            return coercion;
+        }
+    }
+
+    private static final class Coercion
+    {
+        final Class m_class;
+        final Object m_value;
+        final String m_error;
+
+        Coercion(Class clazz, Object value, String error)
+        {
+            m_class = clazz;
+            m_value = value;
+            m_error = error;
+        }
+    }
+}
@@ -110,6 +110,103 @@ public class Parser
         return program.toArray(new Object[program.size()]);
     }
 
+    /**
+     * Compiles the specified program, as returned by <tt>getProgram()</tt>,
+     * into a tree of matchers that can be evaluated without an operand
+     * stack.
+     * @param program the program to compile.
+     * @return the root matcher of the compiled program.
+     * @throws IllegalArgumentException if the program is not well formed.
+    **/
+    public static Matcher compile(Object[] program)
+    {
+        // The operand stack holds matchers for completed sub-expressions
+        // as well as the push and constant operators, which are consumed
+        // by the comparison operator that follows them.
+        Stack operands = new Stack();
+        try
+        {
+            for (int i = 0; i < program.length; i++)
+            {
+                Operator op = (Operator) program[i];
+                if ((op instanceof AndOperator) || (op instanceof OrOperator))
+                {
+                    int count = (op instanceof AndOperator)
+                        ? ((AndOperator) op).operandCount
+                        : ((OrOperator) op).operandCount;
+                    Matcher[] matchers = new Matcher[count];
+                    // Need to preserve stack order.
+                    for (int j = count - 1; j >= 0; j--)
+                    {
+                        matchers[j] = (Matcher) operands.pop();
+                    }
+                    operands.push((op instanceof AndOperator)
+                        ? (Matcher) new Matcher.AndMatcher(matchers)
+                        : (Matcher) new Matcher.OrMatcher(matchers));
+                }
+                else if (op instanceof NotOperator)
+                {
+                    operands.push(new Matcher.NotMatcher((Matcher) operands.pop()));
+                }
+                else if (op instanceof ObjectClassOperator)
+                {
+                    operands.push(new Matcher.ObjectClassMatcher(
+                        ((ObjectClassOperator) op).m_target));
+                }
+                else if (op instanceof PresentOperator)
+                {
+                    operands.push(new Matcher.PresentMatcher(
+                        ((PresentOperator) op).attribute));
+                }
+                else if (op instanceof SubStringOperator)
+                {
+                    PushOperator attr = (PushOperator) operands.pop();
+                    operands.push(new Matcher.SubStringMatcher(
+                        attr.attribute, ((SubStringOperator) op).pieces));
+                }
+                else if ((op instanceof PushOperator) || (op instanceof ConstOperator))
+                {
+                    operands.push(op);
+                }
+                else if ((op instanceof EqualOperator)
+                    || (op instanceof GreaterEqualOperator)
+                    || (op instanceof LessEqualOperator)
+                    || (op instanceof ApproxOperator))
+                {
+                    int operator = (op instanceof GreaterEqualOperator)
+                        ? GREATER_EQUAL
+                        : (op instanceof LessEqualOperator)
+                            ? LESS_EQUAL
+                            : (op instanceof ApproxOperator) ? APPROX : EQUAL;
+                    ConstOperator value = (ConstOperator) operands.pop();
+                    PushOperator attr = (PushOperator) operands.pop();
+                    operands.push(new Matcher.CompareMatcher(
+                        attr.attribute, (String) value.val, operator));
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unknown operator: " + op);
+                }
+            }
+
+            Matcher result = (Matcher) operands.pop();
+            if (!operands.empty())
+            {
+                throw new IllegalArgumentException(
+                    "Program has more than one result.");
+            }
+            return result;
+        }
+        catch (ClassCastException ex)
+        {
+            throw new IllegalArgumentException("Malformed program: " + ex);
+        }
+        catch (EmptyStackException ex)
+        {
+            throw new IllegalArgumentException("Program has too few operands.");
+        }
+    }
+
     // Define the recursive descent procedures
 
     /*
@@ -1626,7 +1723,7 @@ loop:   for (;;)
      * @return true if they are approximate
      * @throws EvaluationException if it the two objects cannot be approximated
     **/
-    private static boolean compareToApprox(Object obj1, Object obj2) throws EvaluationException
+    static boolean compareToApprox(Object obj1, Object obj2) throws EvaluationException
     {
         if (obj1 instanceof Byte)
         {
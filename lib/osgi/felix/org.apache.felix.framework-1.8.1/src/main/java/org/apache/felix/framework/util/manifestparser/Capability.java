@@ -21,6 +21,7 @@ package org.apache.felix.framework.util.manifestparser;
 import java.util.*;
 
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.VersionRange;
 import org.apache.felix.moduleloader.ICapability;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Version;
@@ -38,6 +39,12 @@ public class Capability implements ICapability
     // Cached properties for performance reasons.
     private String m_pkgName;
     private Version m_pkgVersion = Version.emptyVersion;
+    private long m_pkgVersionKey;
+    private Version m_bundleVersion;
+    private long m_bundleVersionKey = VersionRange.UNPACKED;
+    // Packed keys of version attribute values, or UNPACKED for
+    // attributes that are not versions; see VersionRange.pack().
+    private long[] m_attrVersionKeys;
 
     public Capability(String namespace, R4Directive[] dirs, R4Attribute[] attrs)
     {
@@ -111,9 +118,14 @@ public class Capability implements ICapability
             }
         }
 
-        // For performance reasons, find the package name and version properties.
+        // For performance reasons, find the package name and version
+        // properties and pack all version attributes.
+        m_attrVersionKeys = new long[m_attributes.length];
         for (int i = 0; i < m_attributes.length; i++)
         {
+            m_attrVersionKeys[i] = (m_attributes[i].getValue() instanceof Version)
+                ? VersionRange.pack((Version) m_attributes[i].getValue())
+                : VersionRange.UNPACKED;
             if (m_attributes[i].getName().equals(ICapability.PACKAGE_PROPERTY))
             {
                 m_pkgName = (String) m_attributes[i].getValue();
@@ -122,7 +134,14 @@ public class Capability implements ICapability
             {
                 m_pkgVersion = (Version) m_attributes[i].getValue();
             }
+            else if (m_attributes[i].getName().equals(Constants.BUNDLE_VERSION_ATTRIBUTE)
+                && (m_attributes[i].getValue() instanceof Version))
+            {
+                m_bundleVersion = (Version) m_attributes[i].getValue();
+                m_bundleVersionKey = m_attrVersionKeys[i];
+            }
         }
+        m_pkgVersionKey = VersionRange.pack(m_pkgVersion);
     }
 
     public String getNamespace()
@@ -142,6 +161,26 @@ public class Capability implements ICapability
         return m_pkgVersion;
     }
 
+    public long getPackageVersionKey()
+    {
+        return m_pkgVersionKey;
+    }
+
+    public Version getBundleVersion()
+    {
+        return m_bundleVersion;
+    }
+
+    public long getBundleVersionKey()
+    {
+        return m_bundleVersionKey;
+    }
+
+    long getAttributeVersionKey(int idx)
+    {
+        return m_attrVersionKeys[idx];
+    }
+
     public R4Directive[] getDirectives()
     {
         // TODO: RB - We should return copies of the arrays probably.
@@ -18,6 +18,7 @@
  */
 package org.apache.felix.framework.util.manifestparser;
 
+import java.lang.ref.WeakReference;
 import java.util.*;
 
 import org.apache.felix.framework.Logger;
@@ -41,6 +42,19 @@ public class ManifestParser
     private volatile R4LibraryClause[] m_libraryHeaders;
     private volatile boolean m_libraryHeadersOptional = false;
 
+    // Map export, import, and require-bundle header strings to their parsed
+    // capabilities or requirements, which are immutable, so a header is only
+    // parsed once. Imports and required bundles are shared by all modules
+    // with the same header, but R4 exports are replaced by capabilities
+    // carrying each bundle's symbolic name and version, so for them only
+    // the parsing is saved.
+    private static final WeakHashMap m_exportCache = new WeakHashMap();
+    private static final WeakHashMap m_importCache = new WeakHashMap();
+    private static final WeakHashMap m_requireBundleCache = new WeakHashMap();
+    // Maps versions and version ranges to weak references of their
+    // canonical instances.
+    private static final WeakHashMap m_versionCache = new WeakHashMap();
+
     public ManifestParser(Logger logger, Map configMap, Map headerMap)
         throws BundleException
     {
@@ -72,7 +86,8 @@ public class ManifestParser
         {
             try
             {
-                m_bundleVersion = Version.parseVersion((String) headerMap.get(Constants.BUNDLE_VERSION));
+                m_bundleVersion = (Version) intern(
+                    Version.parseVersion((String) headerMap.get(Constants.BUNDLE_VERSION)));
             }
             catch (RuntimeException ex)
             {
@@ -867,6 +882,38 @@ public class ManifestParser
     }
 
     public static ICapability[] parseExportHeader(String header)
+    {
+        ICapability[] caps = null;
+        synchronized (m_exportCache)
+        {
+            caps = (ICapability[]) m_exportCache.get(header);
+        }
+        if (caps == null)
+        {
+            caps = createExportCapabilities(header);
+            synchronized (m_exportCache)
+            {
+                m_exportCache.put(header, caps);
+            }
+        }
+        return copy(caps);
+    }
+
+    private static ICapability[] copy(ICapability[] caps)
+    {
+        ICapability[] copy = new ICapability[caps.length];
+        System.arraycopy(caps, 0, copy, 0, caps.length);
+        return copy;
+    }
+
+    private static IRequirement[] copy(IRequirement[] reqs)
+    {
+        IRequirement[] copy = new IRequirement[reqs.length];
+        System.arraycopy(reqs, 0, copy, 0, reqs.length);
+        return copy;
+    }
+
+    private static ICapability[] createExportCapabilities(String header)
     {
         Object[][][] clauses = parseStandardHeader(header);
 
@@ -919,7 +966,7 @@ public class ManifestParser
                 attrMap.put(Constants.VERSION_ATTRIBUTE,
                     new R4Attribute(
                         Constants.VERSION_ATTRIBUTE,
-                        Version.parseVersion(v.getValue().toString()),
+                        intern(Version.parseVersion(v.getValue().toString())),
                         v.isMandatory()));
 
                 // Re-copy the attribute array since it has changed.
@@ -963,6 +1010,24 @@ public class ManifestParser
     }
 
     public static IRequirement[] parseImportHeader(String header)
+    {
+        IRequirement[] reqs = null;
+        synchronized (m_importCache)
+        {
+            reqs = (IRequirement[]) m_importCache.get(header);
+        }
+        if (reqs == null)
+        {
+            reqs = createImportRequirements(header);
+            synchronized (m_importCache)
+            {
+                m_importCache.put(header, reqs);
+            }
+        }
+        return copy(reqs);
+    }
+
+    private static IRequirement[] createImportRequirements(String header)
     {
         Object[][][] clauses = parseStandardHeader(header);
 
@@ -1007,7 +1072,7 @@ public class ManifestParser
                 attrMap.put(Constants.VERSION_ATTRIBUTE,
                     new R4Attribute(
                         Constants.VERSION_ATTRIBUTE,
-                        VersionRange.parse(v.getValue().toString()),
+                        intern(VersionRange.parse(v.getValue().toString())),
                         v.isMandatory()));
             }
 
@@ -1018,7 +1083,7 @@ public class ManifestParser
                 attrMap.put(Constants.BUNDLE_VERSION_ATTRIBUTE,
                     new R4Attribute(
                         Constants.BUNDLE_VERSION_ATTRIBUTE,
-                        VersionRange.parse(v.getValue().toString()),
+                        intern(VersionRange.parse(v.getValue().toString())),
                         v.isMandatory()));
             }
 
@@ -1062,6 +1127,24 @@ public class ManifestParser
     }
 
     public static IRequirement[] parseRequireBundleHeader(String header)
+    {
+        IRequirement[] reqs = null;
+        synchronized (m_requireBundleCache)
+        {
+            reqs = (IRequirement[]) m_requireBundleCache.get(header);
+        }
+        if (reqs == null)
+        {
+            reqs = createRequireBundleRequirements(header);
+            synchronized (m_requireBundleCache)
+            {
+                m_requireBundleCache.put(header, reqs);
+            }
+        }
+        return copy(reqs);
+    }
+
+    private static IRequirement[] createRequireBundleRequirements(String header)
     {
         Object[][][] clauses = parseStandardHeader(header);
 
@@ -1081,7 +1164,7 @@ public class ManifestParser
                     clauses[clauseIdx][CLAUSE_ATTRIBUTES_INDEX][attrIdx] =
                         new R4Attribute(
                             Constants.BUNDLE_VERSION_ATTRIBUTE,
-                            VersionRange.parse(attr.getValue().toString()),
+                            intern(VersionRange.parse(attr.getValue().toString())),
                             attr.isMandatory());
                 }
             }
@@ -1151,6 +1234,28 @@ public class ManifestParser
         return result;
     }
 
+    /**
+     * Returns the canonical instance of the specified version or version
+     * range, so that equal versions parsed from different manifests are
+     * only held once.
+     * @param version the version or version range.
+     * @return the canonical instance equal to the specified one.
+    **/
+    private static Object intern(Object version)
+    {
+        synchronized (m_versionCache)
+        {
+            WeakReference ref = (WeakReference) m_versionCache.get(version);
+            Object canonical = (ref == null) ? null : ref.get();
+            if (canonical == null)
+            {
+                canonical = version;
+                m_versionCache.put(version, new WeakReference(version));
+            }
+            return canonical;
+        }
+    }
+
     public static final int CLAUSE_PATHS_INDEX = 0;
     public static final int CLAUSE_DIRECTIVES_INDEX = 1;
     public static final int CLAUSE_ATTRIBUTES_INDEX = 2;
@@ -1212,9 +1317,13 @@ public class ManifestParser
                 "No paths specified in header: " + clauseString);
         }
 
-        // Create an array of paths.
+        // Create an array of paths, interning them since the same
+        // package names are used by many modules.
         String[] paths = new String[pathCount];
-        System.arraycopy(pieces, 0, paths, 0, pathCount);
+        for (int pathIdx = 0; pathIdx < pathCount; pathIdx++)
+        {
+            paths[pathIdx] = pieces[pathIdx].intern();
+        }
 
         // Parse the directives/attributes.
         Map dirsMap = new HashMap();
@@ -1239,7 +1348,7 @@ public class ManifestParser
                 throw new IllegalArgumentException("Not a directive/attribute: " + clauseString);
             }
 
-            String key = pieces[pieceIdx].substring(0, idx).trim();
+            String key = pieces[pieceIdx].substring(0, idx).trim().intern();
             String value = pieces[pieceIdx].substring(idx + sep.length()).trim();
 
             // Remove quotes, if value is quoted.
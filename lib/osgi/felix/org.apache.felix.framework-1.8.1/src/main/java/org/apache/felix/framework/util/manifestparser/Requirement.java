@@ -211,7 +211,8 @@ public class Requirement implements IRequirement
                     // "in range" comparison, otherwise we simply use equals().
                     if (capAttr.getValue() instanceof Version)
                     {
-                        if (!((VersionRange) reqAttr.getValue()).isInRange((Version) capAttr.getValue()))
+                        if (!((VersionRange) reqAttr.getValue()).isInRange(
+                            ec.getAttributeVersionKey(capAttrIdx), (Version) capAttr.getValue()))
                         {
                             return false;
                         }
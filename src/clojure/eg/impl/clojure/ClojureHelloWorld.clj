@@ -16,10 +16,23 @@
 
 (ns eg.impl.clojure.ClojureHelloWorld
 	(:gen-class
-		:implements [eg.api.HelloWorld]
+		:implements [eg.api.BatchHelloWorld]
+		:init init
+		:constructors {[eg.api.OutputSink] []}
+		:state output
 	)
 )
 
+(defn -init [output]
+	[[] output]
+)
+
 (defn -greet [this]
-	(println "Hello, World!" "(" (str (class this)) ")" ) 
+	(.println (.output this) (str "Hello, World! ( " (class this) " )"))
+)
+
+(defn -greetAll [this recipients out]
+	(doseq [recipient recipients]
+		(.append out (str "Hello, " recipient "! ( " (class this) " )\n"))
+	)
 )
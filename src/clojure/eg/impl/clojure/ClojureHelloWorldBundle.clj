@@ -20,6 +20,6 @@
 )
 
 (defn -getHelloWorld [this]
-	(new eg.impl.clojure.ClojureHelloWorld)
+	(new eg.impl.clojure.ClojureHelloWorld (.getOutput this))
 )
 
@@ -19,10 +19,18 @@ package eg.impl.groovy16
 
 import eg.api.*
 
-class Groovy16HelloWorld implements HelloWorld {
+class Groovy16HelloWorld implements BatchHelloWorld {
+
+	OutputSink output
 
 	void greet() { 
-		println "Hello, World! (" + this.class + ")"
+		output.println "Hello, World! (" + this.class + ")"
+	}
+
+	void greetAll(List<String> recipients, Appendable out) {
+		for(recipient in recipients) {
+			out.append("Hello, " + recipient + "! (" + this.class + ")\n")
+		}
 	}
 
 }
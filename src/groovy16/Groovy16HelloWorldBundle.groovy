@@ -24,7 +24,7 @@ import eg.osgi.helpers.*;
 
 class Groovy16HelloWorldBundle extends HelloWorldBundle {
 
-	HelloWorld helloWorld = new Groovy16HelloWorld() 
+	HelloWorld helloWorld = new Groovy16HelloWorld(output: getOutput())
 
 }
 
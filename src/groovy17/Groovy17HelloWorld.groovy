@@ -18,10 +18,18 @@ package eg.impl.groovy17
 
 import eg.api.*
 
-class Groovy17HelloWorld implements HelloWorld {
+class Groovy17HelloWorld implements BatchHelloWorld {
+
+	OutputSink output
 
 	void greet() { 
-		println "Hello, World! (" + this.class + ")"
+		output.println "Hello, World! (" + this.class + ")"
+	}
+
+	void greetAll(List<String> recipients, Appendable out) {
+		for(recipient in recipients) {
+			out.append("Hello, " + recipient + "! (" + this.class + ")\n")
+		}
 	}
 
 }
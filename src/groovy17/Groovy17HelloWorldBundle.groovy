@@ -22,6 +22,6 @@ import org.osgi.framework.*;
 
 class Groovy17HelloWorldBundle extends HelloWorldBundle {
 
-	HelloWorld helloWorld = new Groovy17HelloWorld() 
+	HelloWorld helloWorld = new Groovy17HelloWorld(output: getOutput())
 
 }
@@ -18,10 +18,25 @@ package eg.impl.java;
 
 import eg.api.*;
 
-public class JavaHelloWorld implements HelloWorld {
+import java.io.IOException;
+import java.util.List;
+
+public class JavaHelloWorld implements BatchHelloWorld {
+
+	private final OutputSink output;
+
+	public JavaHelloWorld(OutputSink output) {
+		this.output = output;
+	}
 
 	public void greet() {
-		System.out.println("Hello, World! (" + this.getClass() + ")");
+		output.println("Hello, World! (" + this.getClass() + ")");
+	}
+
+	public void greetAll(List<String> recipients, Appendable out) throws IOException {
+		for(String recipient : recipients) {
+			out.append("Hello, ").append(recipient).append("! (").append(this.getClass().toString()).append(")\n");
+		}
 	}
 
 }
@@ -22,7 +22,7 @@ import eg.osgi.helpers.HelloWorldBundle;
 public class JavaHelloWorldBundle extends HelloWorldBundle {
 
 	public HelloWorld getHelloWorld() {
-		return new JavaHelloWorld();
+		return new JavaHelloWorld(getOutput());
 	}
 
 }
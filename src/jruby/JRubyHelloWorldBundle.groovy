@@ -27,19 +27,28 @@ class JRubyHelloWorldBundle extends HelloWorldBundle {
 		assert engineMgr
     def engine = engineMgr.getEngineByName("jruby")
 		assert engine
-		return engine.eval("""
+		def cls = engine.eval("""
 			include Java
 
 			class JRubyHelloWorld
-				include Java::eg.api.HelloWorld
+				include Java::eg.api.BatchHelloWorld
+
+				def initialize(output)
+					@output = output
+				end
 		
 				def greet
-					puts "Hello, World! (From #{self.class})"
+					@output.println "Hello, World! (From #{self.class})"
+				end
+
+				def greetAll(recipients, out)
+					recipients.each { |recipient| out.append "Hello, #{recipient}! (From #{self.class})\\n" }
 				end
 			end
 			
-			JRubyHelloWorld.new
+			JRubyHelloWorld
 		""")
+		return engine.invokeMethod(cls, "new", getOutput())
 	}
 
 }
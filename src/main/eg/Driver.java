@@ -1,27 +1,63 @@
 package eg;
 
+import eg.api.AsyncOutputSink;
 import eg.api.HelloWorld;
+import eg.api.OutputSink;
+import org.osgi.framework.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Driver {
 
 	public static void main(String[] args) throws Exception {
 		System.out.println("Starting...");
 		OSGiRuntime osgi = null;
+		AsyncOutputSink output = new AsyncOutputSink(System.out);
 		try {
 			osgi = new OSGiRuntime("eg.api", "eg.osgi.helpers");
+			osgi.setInstallByReference(Boolean.getBoolean("eg.install.reference"));
+			osgi.registerService(OutputSink.class, output);
 			ServiceProvider<HelloWorld> servicesFactory = osgi.trackService(HelloWorld.class);
 
 			for(String arg : args) {
 				System.out.println("Processing " + arg);
-				osgi.loadBundleFile(arg);
+			}
+			Map<Bundle, Long> timings = new LinkedHashMap<Bundle, Long>();
+			osgi.loadBundleFiles(timings, args);
+			for(Map.Entry<Bundle, Long> timing : timings.entrySet()) {
+				System.out.println("Loaded " + timing.getKey().getSymbolicName() + " in " + timing.getValue() + " ms");
 			}
 
-			for(HelloWorld impl : servicesFactory.getServices()) {
-				impl.greet();
+			ExecutorService executor = FanOut.newDefaultExecutor();
+			try {
+				FanOut.Results<HelloWorld, Void> results = new FanOut<HelloWorld>(executor).invokeAll(
+					servicesFactory.snapshot(),
+					new FanOut.Call<HelloWorld, Void>() {
+						public Void call(HelloWorld impl) {
+							impl.greet();
+							return null;
+						}
+					},
+					Long.getLong("eg.greet.timeout", 60000L), TimeUnit.MILLISECONDS
+				);
+				for(int i = 0; i < results.size(); i++) {
+					if(!results.isCompleted(i)) {
+						System.out.println("Timed out greeting from " + results.getService(i).getClass());
+					} else if(results.getError(i) != null) {
+						System.out.println("Failed greeting from " + results.getService(i).getClass() + ": " + results.getError(i));
+					}
+				}
+			} finally {
+				executor.shutdown();
+				output.flush();
 			}
-			
+
 		} finally {
 			if(osgi != null) osgi.stop();
+			output.close();
 		}
 		System.out.println("Done!");
 	}
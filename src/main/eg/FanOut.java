@@ -0,0 +1,168 @@
+package eg;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Invokes every one of a set of services concurrently, so a call to several implementations
+ * takes about as long as the slowest of them instead of the sum of all of them.
+ */
+public class FanOut<M> {
+
+	/**
+	 * The work to do with each service.
+	 */
+	public interface Call<M, R> {
+		R call(M service) throws Exception;
+	}
+
+	/**
+	 * The outcome of a fan-out, per service in the order they were given.
+	 */
+	public static class Results<M, R> {
+
+		private final List<M> services;
+		private final Object[] values;
+		private final Throwable[] errors;
+		private final boolean[] completed;
+
+		Results(List<M> services) {
+			this.services = services;
+			this.values = new Object[services.size()];
+			this.errors = new Throwable[services.size()];
+			this.completed = new boolean[services.size()];
+		}
+
+		public int size() {
+			return services.size();
+		}
+
+		public M getService(int i) {
+			return services.get(i);
+		}
+
+		/**
+		 * Returns false if the call had not finished when the fan-out returned,
+		 * because it timed out or enough other calls had succeeded.
+		 */
+		public boolean isCompleted(int i) {
+			return completed[i];
+		}
+
+		@SuppressWarnings("unchecked")
+		public R getResult(int i) {
+			return (R)values[i];
+		}
+
+		public Throwable getError(int i) {
+			return errors[i];
+		}
+
+		/**
+		 * Returns the results of the calls that succeeded.
+		 */
+		public List<R> getResults() {
+			List<R> results = new ArrayList<R>(services.size());
+			for(int i = 0; i < services.size(); i++) {
+				if(completed[i] && errors[i] == null) results.add(getResult(i));
+			}
+			return results;
+		}
+
+		/**
+		 * Returns the exceptions thrown by the calls that failed.
+		 */
+		public List<Throwable> getErrors() {
+			List<Throwable> failures = new ArrayList<Throwable>(0);
+			for(Throwable error : errors) {
+				if(error != null) failures.add(error);
+			}
+			return failures;
+		}
+	}
+
+	private final Executor executor;
+
+	/**
+	 * Uses the given executor for the calls; it should be able to run as many
+	 * calls at once as there are services, or the calls queue up behind each other.
+	 */
+	public FanOut(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns an executor running each call on a virtual thread when the JVM has them,
+	 * and otherwise on a cached pool of daemon threads. Callers shut it down when done.
+	 */
+	public static ExecutorService newDefaultExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				private int count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FanOut-" + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Calls all the services and waits for every call to finish, or for the timeout
+	 * to expire if it is positive.
+	 */
+	public <R> Results<M, R> invokeAll(List<M> services, Call<M, R> call, long timeout, TimeUnit unit) throws InterruptedException {
+		return invokeFirst(services, call, services.size(), timeout, unit);
+	}
+
+	/**
+	 * Calls all the services and returns as soon as the given number of calls have
+	 * succeeded, every call has finished, or the timeout has expired if it is positive.
+	 * The calls still running are then cancelled.
+	 */
+	public <R> Results<M, R> invokeFirst(List<M> services, final Call<M, R> call, int wanted, long timeout, TimeUnit unit) throws InterruptedException {
+		Results<M, R> results = new Results<M, R>(services);
+		CompletionService<R> completion = new ExecutorCompletionService<R>(executor);
+		Map<Future<R>, Integer> indexes = new HashMap<Future<R>, Integer>();
+		for(int i = 0; i < services.size(); i++) {
+			final M service = services.get(i);
+			indexes.put(completion.submit(new Callable<R>() {
+				public R call() throws Exception {
+					return call.call(service);
+				}
+			}), i);
+		}
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int finished = 0, succeeded = 0;
+		try {
+			while(finished < services.size() && succeeded < wanted) {
+				Future<R> future;
+				if(timeout > 0) {
+					future = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if(future == null) break; // timed out
+				} else {
+					future = completion.take();
+				}
+				int i = indexes.remove(future);
+				finished++;
+				results.completed[i] = true;
+				try {
+					results.values[i] = future.get();
+					succeeded++;
+				} catch(ExecutionException e) {
+					results.errors[i] = e.getCause();
+				}
+			}
+		} finally {
+			for(Future<R> future : indexes.keySet()) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+
+}
@@ -1,6 +1,8 @@
 package eg;
 
 import org.osgi.framework.*;
+import org.osgi.service.packageadmin.ExportedPackage;
+import org.osgi.service.packageadmin.PackageAdmin;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
 import org.apache.felix.framework.Felix;
@@ -8,12 +10,16 @@ import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.main.AutoActivator;
 
 import java.io.*;
+import java.net.MalformedURLException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.jar.JarFile;
 
 public class OSGiRuntime {
 
 	private final Felix runtime;
 	private final List<ServiceProvider> providers = new ArrayList<ServiceProvider>(8);
+	private volatile boolean installByReference = false;
 
 	private static String buildPackages(String[]... packages) {
 		StringBuilder builder = new StringBuilder();
@@ -84,12 +90,62 @@ public class OSGiRuntime {
 		}
 	}
 
+	/**
+	 * Tracks the services of the given class matching the LDAP filter, if not null,
+	 * and keeps the one preferred by the policy (see {@link ServiceSelection}) available
+	 * from {@link ServiceProvider#getBest()}.
+	 */
+	public <M> ServiceProvider<M> trackService(Class<M> cls, String filter, Comparator<ServiceReference> policy) throws InvalidSyntaxException {
+		final BundleContext context = runtime.getBundleContext();
+		if(context != null) {
+			Filter parsed = null;
+			if(filter != null) {
+				parsed = context.createFilter("(&(" + Constants.OBJECTCLASS + "=" + cls.getName() + ")" + filter + ")");
+			}
+			ServiceProvider<M> it = new ServiceProvider<M>(context, cls, parsed, policy);
+			providers.add(it);
+			return it;
+		} else {
+			return null;
+		}
+	}
+
+	public <M> ServiceProvider<M> trackService(Class<M> cls, String filter) throws InvalidSyntaxException {
+		return trackService(cls, filter, ServiceSelection.HIGHEST_RANKING);
+	}
+
+	/**
+	 * Registers a service from the runtime itself, for the bundles to use.
+	 */
+	public <M> ServiceRegistration registerService(Class<M> cls, M service) {
+		final BundleContext context = runtime.getBundleContext();
+		return (context != null) ? context.registerService(cls.getName(), service, null) : null;
+	}
+
+	/**
+	 * Chooses whether bundle files are used in place or copied into the framework's cache.
+	 * Installing by reference saves the copy and its disk space, but the files must then
+	 * stay unchanged at their location for as long as the bundles are installed.
+	 */
+	public void setInstallByReference(boolean installByReference) {
+		this.installByReference = installByReference;
+	}
+
+	public boolean isInstallByReference() {
+		return installByReference;
+	}
+
+	private String bundleLocation(File file) throws MalformedURLException {
+		String url = file.toURI().toURL().toString();
+		return installByReference ? "reference:" + url : url;
+	}
+
 	public Bundle loadBundleFile(String location) throws Exception {
 		File file = new File(location).getCanonicalFile();
 		if(!file.exists()) throw new FileNotFoundException("Could not find bundle file at " + file);
 		BundleContext context = runtime.getBundleContext();
 		if(context != null) {
-			Bundle toReturn = context.installBundle("file://" + file);
+			Bundle toReturn = context.installBundle(bundleLocation(file));
 			toReturn.start();
 			return toReturn;
 		} else {
@@ -97,6 +153,152 @@ public class OSGiRuntime {
 		}
 	}
 
+	/**
+	 * Installs all the given bundle files, then resolves them together and starts them.
+	 * Resolving the batch at once lets the framework share the search for the
+	 * bundles' dependencies instead of repeating it for every bundle.
+	 */
+	public List<Bundle> loadBundleFiles(String... locations) throws Exception {
+		return loadBundleFiles(null, locations);
+	}
+
+	/**
+	 * Installs all the given bundle files concurrently, then resolves them together
+	 * and starts them so that bundles exporting packages are started before the
+	 * bundles of the batch importing them. Each bundle's archive is checked and copied
+	 * into the cache on its own thread; the framework still parses the manifests one
+	 * bundle at a time, under its install lock.
+	 * If timings is not null, it receives the milliseconds spent installing and
+	 * starting each bundle. If some bundles fail to install, the ones that were
+	 * installed are uninstalled again and the first failure is thrown.
+	 */
+	public List<Bundle> loadBundleFiles(Map<Bundle, Long> timings, String... locations) throws Exception {
+		final BundleContext context = runtime.getBundleContext();
+		if(context == null) return null;
+		int threads = Math.max(1, Math.min(locations.length, Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Object[]>> installs = new ArrayList<Future<Object[]>>(locations.length);
+		try {
+			for(final String location : locations) {
+				installs.add(executor.submit(new Callable<Object[]>() {
+					public Object[] call() throws Exception {
+						long begin = System.nanoTime();
+						File file = verifyBundleFile(location);
+						Bundle bundle = context.installBundle(bundleLocation(file));
+						return new Object[] { bundle, System.nanoTime() - begin };
+					}
+				}));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		List<Bundle> bundles = new ArrayList<Bundle>(locations.length);
+		Map<Bundle, Long> nanos = new HashMap<Bundle, Long>();
+		Exception failure = null;
+		for(Future<Object[]> install : installs) {
+			try {
+				Object[] result = install.get();
+				bundles.add((Bundle)result[0]);
+				nanos.put((Bundle)result[0], (Long)result[1]);
+			} catch(ExecutionException e) {
+				if(failure == null) {
+					failure = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+				}
+			}
+		}
+		if(failure != null) {
+			for(Bundle bundle : bundles) {
+				try {
+					bundle.uninstall();
+				} catch(BundleException e) {
+					// Keep the original failure
+				}
+			}
+			throw failure;
+		}
+
+		ServiceReference ref = context.getServiceReference(PackageAdmin.class.getName());
+		if(ref != null) {
+			try {
+				PackageAdmin admin = (PackageAdmin)context.getService(ref);
+				admin.resolveBundles(bundles.toArray(new Bundle[bundles.size()]));
+				bundles = sortByDependencies(admin, bundles);
+			} finally {
+				context.ungetService(ref);
+			}
+		}
+		for(Bundle bundle : bundles) {
+			long begin = System.nanoTime();
+			bundle.start();
+			nanos.put(bundle, nanos.get(bundle) + System.nanoTime() - begin);
+		}
+		if(timings != null) {
+			for(Bundle bundle : bundles) {
+				timings.put(bundle, nanos.get(bundle) / 1000000L);
+			}
+		}
+		return bundles;
+	}
+
+	private static File verifyBundleFile(String location) throws IOException {
+		File file = new File(location).getCanonicalFile();
+		if(!file.exists()) throw new FileNotFoundException("Could not find bundle file at " + file);
+		JarFile jar = new JarFile(file);
+		try {
+			if(jar.getManifest() == null) throw new IOException("No manifest in bundle file at " + file);
+		} finally {
+			jar.close();
+		}
+		return file;
+	}
+
+	/**
+	 * Orders the given resolved bundles so that each bundle comes after the bundles
+	 * of the list it imports packages from. Bundles in a cycle keep their order.
+	 */
+	private static List<Bundle> sortByDependencies(PackageAdmin admin, List<Bundle> bundles) {
+		Map<Bundle, Set<Bundle>> importers = new HashMap<Bundle, Set<Bundle>>();
+		Map<Bundle, Integer> exporterCounts = new HashMap<Bundle, Integer>();
+		for(Bundle bundle : bundles) {
+			importers.put(bundle, new LinkedHashSet<Bundle>());
+			exporterCounts.put(bundle, 0);
+		}
+		for(Bundle bundle : bundles) {
+			ExportedPackage[] exports = admin.getExportedPackages(bundle);
+			if(exports == null) continue;
+			for(ExportedPackage export : exports) {
+				Bundle[] importing = export.getImportingBundles();
+				if(importing == null) continue;
+				for(Bundle importer : importing) {
+					if(importer != bundle && importers.containsKey(importer)
+							&& importers.get(bundle).add(importer)) {
+						exporterCounts.put(importer, exporterCounts.get(importer) + 1);
+					}
+				}
+			}
+		}
+
+		List<Bundle> sorted = new ArrayList<Bundle>(bundles.size());
+		Set<Bundle> remaining = new LinkedHashSet<Bundle>(bundles);
+		while(!remaining.isEmpty()) {
+			Bundle next = null;
+			for(Bundle bundle : remaining) {
+				if(exporterCounts.get(bundle) == 0) {
+					next = bundle;
+					break;
+				}
+			}
+			if(next == null) next = remaining.iterator().next(); // break a cycle
+			remaining.remove(next);
+			sorted.add(next);
+			for(Bundle importer : importers.get(next)) {
+				exporterCounts.put(importer, exporterCounts.get(importer) - 1);
+			}
+		}
+		return sorted;
+	}
+
 	public void stop() throws Exception {
 		for(ServiceProvider it : providers) {
 			it.close();
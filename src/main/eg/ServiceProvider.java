@@ -3,40 +3,171 @@ package eg;
 import org.osgi.framework.*;
 import org.osgi.util.tracker.ServiceTracker;
 import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import java.lang.reflect.Array;
 import java.util.*;
 
 public class ServiceProvider<M> {
 
 	final ServiceTracker tracker;
 	private final Class<M> cls;
+	private final Comparator<ServiceReference> policy;
 
-	public ServiceProvider(final BundleContext context, Class<M> toProvide) {
+	/**
+	 * The tracked services and their references, replaced as a whole whenever the
+	 * tracker adds or removes one, and an unmodifiable view of the services handed
+	 * out to callers.
+	 */
+	private M[] services;
+	private ServiceReference[] references = new ServiceReference[0];
+	private volatile List<M> snapshot;
+	private volatile int trackingCount = 0;
+
+	/**
+	 * The service the policy prefers, kept up to date as services come and go.
+	 */
+	private volatile M best;
+	private ServiceReference bestReference;
+
+	public ServiceProvider(BundleContext context, Class<M> toProvide) {
+		this(context, toProvide, null, ServiceSelection.HIGHEST_RANKING);
+	}
+
+	/**
+	 * Tracks the services of the given class which match the filter, if not null,
+	 * and keeps the one ordered first by the policy available from {@link #getBest()}.
+	 */
+	public ServiceProvider(final BundleContext context, Class<M> toProvide, Filter filter, Comparator<ServiceReference> policy) {
 		this.cls = toProvide;
-		this.tracker = new ServiceTracker(context, toProvide.getName(), new ServiceTrackerCustomizer() {
-        public Object addingService(ServiceReference reference) { 
-					return context.getService(reference); 
+		this.policy = policy;
+		setServices(newArray(0));
+		ServiceTrackerCustomizer customizer = new ServiceTrackerCustomizer() {
+			public Object addingService(ServiceReference reference) {
+				Object service = context.getService(reference);
+				if(!cls.isInstance(service)) {
+					// Registered by a bundle that sees a different copy of the class
+					if(service != null) context.ungetService(reference);
+					return null;
 				}
-        public void modifiedService(ServiceReference reference, Object service) {}
-        public void removedService(ServiceReference reference, Object service) {}
-		});
+				added(reference, cls.cast(service));
+				return service;
+			}
+			public void modifiedService(ServiceReference reference, Object service) {
+				modified(reference);
+			}
+			public void removedService(ServiceReference reference, Object service) {
+				removed(reference);
+				context.ungetService(reference);
+			}
+		};
+		this.tracker = (filter == null)
+			? new ServiceTracker(context, toProvide.getName(), customizer)
+			: new ServiceTracker(context, filter, customizer);
 		this.tracker.open();
 	}
 
-	public List<M> getServices() {
-		Object[] services = tracker.getServices();
-		if(services == null) return new ArrayList<M>(0);
-		final List<M> toReturn = new ArrayList<M>(services.length); 
-		for(Object service : services) {
-			if(!cls.isInstance(service)) {
-				throw new ClassCastException("Cannot cast " + service.getClass() + " to " + cls);
+	@SuppressWarnings("unchecked")
+	private M[] newArray(int length) {
+		return (M[])Array.newInstance(cls, length);
+	}
+
+	private void setServices(M[] services) {
+		this.services = services;
+		this.snapshot = Collections.unmodifiableList(Arrays.asList(services));
+	}
+
+	private synchronized void added(ServiceReference reference, M service) {
+		M[] tracked = newArray(services.length + 1);
+		System.arraycopy(services, 0, tracked, 0, services.length);
+		tracked[services.length] = service;
+		ServiceReference[] refs = new ServiceReference[references.length + 1];
+		System.arraycopy(references, 0, refs, 0, references.length);
+		refs[references.length] = reference;
+		setServices(tracked);
+		references = refs;
+		if(bestReference == null || policy.compare(reference, bestReference) < 0) {
+			bestReference = reference;
+			best = service;
+		}
+		trackingCount++;
+	}
+
+	private synchronized void removed(ServiceReference reference) {
+		for(int i = 0; i < references.length; i++) {
+			if(references[i].equals(reference)) {
+				M[] tracked = newArray(services.length - 1);
+				System.arraycopy(services, 0, tracked, 0, i);
+				System.arraycopy(services, i + 1, tracked, i, tracked.length - i);
+				ServiceReference[] refs = new ServiceReference[references.length - 1];
+				System.arraycopy(references, 0, refs, 0, i);
+				System.arraycopy(references, i + 1, refs, i, refs.length - i);
+				setServices(tracked);
+				references = refs;
+				break;
+			}
+		}
+		if(reference.equals(bestReference)) selectBest();
+		trackingCount++;
+	}
+
+	private synchronized void modified(ServiceReference reference) {
+		// A changed ranking or property can only matter for the modified service
+		if(reference.equals(bestReference)) {
+			selectBest();
+		} else if(bestReference != null && policy.compare(reference, bestReference) < 0) {
+			for(int i = 0; i < references.length; i++) {
+				if(references[i].equals(reference)) {
+					bestReference = reference;
+					best = services[i];
+					break;
+				}
 			}
-			toReturn.add((M)service); // Type erasure prevents this from throwing an exception
 		}
-		return toReturn;
+		trackingCount++;
+	}
+
+	private void selectBest() {
+		int bestIndex = -1;
+		for(int i = 0; i < references.length; i++) {
+			if(bestIndex < 0 || policy.compare(references[i], references[bestIndex]) < 0) bestIndex = i;
+		}
+		bestReference = (bestIndex < 0) ? null : references[bestIndex];
+		best = (bestIndex < 0) ? null : services[bestIndex];
+	}
+
+	/**
+	 * Returns the service preferred by the selection policy, or null if none is tracked.
+	 */
+	public M getBest() {
+		return best;
+	}
+
+	/**
+	 * Returns the services currently tracked, in the order they were added, without
+	 * copying them. The list is shared between callers and cannot be modified; it
+	 * does not change when services come and go later.
+	 */
+	public List<M> snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns a number that changes whenever a service is added, modified or removed,
+	 * so callers can keep what they derived from a snapshot until it changes.
+	 */
+	public int getTrackingCount() {
+		return trackingCount;
+	}
+
+	/**
+	 * Returns a new list of the services currently tracked; use {@link #snapshot()}
+	 * on hot paths to avoid the copy.
+	 */
+	public List<M> getServices() {
+		return new ArrayList<M>(snapshot);
 	}
 
 	public void close() {
-		tracker.close();
+		tracker.close(); // removes every service from the snapshot
 	}
 
 }
@@ -0,0 +1,58 @@
+package eg;
+
+import org.osgi.framework.*;
+import java.util.Comparator;
+
+/**
+ * Policies choosing the best of several services, given as comparators ordering the best
+ * service reference first.
+ */
+public final class ServiceSelection {
+
+	private ServiceSelection() {}
+
+	/**
+	 * Prefers the highest service.ranking, then the lowest service.id, like
+	 * {@link BundleContext#getServiceReference(String)}.
+	 */
+	public static final Comparator<ServiceReference> HIGHEST_RANKING = new Comparator<ServiceReference>() {
+		public int compare(ServiceReference a, ServiceReference b) {
+			int rankingA = ranking(a), rankingB = ranking(b);
+			if(rankingA != rankingB) return (rankingA > rankingB) ? -1 : 1;
+			return LOWEST_ID.compare(a, b);
+		}
+	};
+
+	/**
+	 * Prefers the service registered first.
+	 */
+	public static final Comparator<ServiceReference> LOWEST_ID = new Comparator<ServiceReference>() {
+		public int compare(ServiceReference a, ServiceReference b) {
+			long idA = id(a), idB = id(b);
+			return (idA < idB) ? -1 : ((idA == idB) ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Prefers services whose property has the given value, then the highest ranking.
+	 */
+	public static Comparator<ServiceReference> preferring(final String key, final Object value) {
+		return new Comparator<ServiceReference>() {
+			public int compare(ServiceReference a, ServiceReference b) {
+				boolean matchA = value.equals(a.getProperty(key)), matchB = value.equals(b.getProperty(key));
+				if(matchA != matchB) return matchA ? -1 : 1;
+				return HIGHEST_RANKING.compare(a, b);
+			}
+		};
+	}
+
+	private static int ranking(ServiceReference reference) {
+		Object ranking = reference.getProperty(Constants.SERVICE_RANKING);
+		return (ranking instanceof Integer) ? (Integer)ranking : 0;
+	}
+
+	private static long id(ServiceReference reference) {
+		return (Long)reference.getProperty(Constants.SERVICE_ID);
+	}
+
+}
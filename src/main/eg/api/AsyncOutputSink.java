@@ -0,0 +1,118 @@
+package eg.api;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Queues lines without locking and writes them from a single background thread.
+ * Callers never wait for the stream, and the stream's lock is taken once per batch
+ * of lines instead of once per line and caller.
+ */
+public class AsyncOutputSink implements OutputSink {
+
+	private static final int BATCH_SIZE = 8192;
+
+	private final PrintStream target;
+	private final ConcurrentLinkedQueue<String> lines = new ConcurrentLinkedQueue<String>();
+	private final AtomicLong queued = new AtomicLong();
+	private long written = 0; // guarded by this
+	private volatile boolean closed = false;
+	private final Thread writer;
+
+	public AsyncOutputSink(PrintStream target) {
+		this.target = target;
+		this.writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					write();
+				} finally {
+					// Wake up the callers of flush(), which stop waiting once the writer is gone
+					synchronized(AsyncOutputSink.this) {
+						AsyncOutputSink.this.notifyAll();
+					}
+				}
+			}
+		}, "AsyncOutputSink");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	public void println(String line) {
+		lines.offer(line);
+		queued.incrementAndGet();
+		LockSupport.unpark(writer);
+		if(!writer.isAlive()) drain(); // closed, so nobody else will write it
+	}
+
+	public void flush() {
+		long wanted = queued.get();
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		synchronized(this) {
+			while(written < wanted && writer.isAlive()) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Writes the lines queued so far and stops the writer thread. Lines written
+	 * afterwards go straight to the stream.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		boolean interrupted = false;
+		while(writer.isAlive()) {
+			try {
+				writer.join();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		drain(); // lines queued as the writer was finishing
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+
+	private synchronized void drain() {
+		String line;
+		while((line = lines.poll()) != null) {
+			target.println(line);
+		}
+		target.flush();
+	}
+
+	private void write() {
+		StringBuilder batch = new StringBuilder(BATCH_SIZE);
+		long count = 0;
+		while(true) {
+			String line = lines.poll();
+			if(line != null) {
+				batch.append(line).append('\n');
+				count++;
+				if(batch.length() < BATCH_SIZE) continue;
+			}
+			if(batch.length() > 0) {
+				target.print(batch);
+				target.flush();
+				batch.setLength(0);
+				synchronized(this) {
+					written = count;
+					notifyAll();
+				}
+			}
+			if(line == null) {
+				if(closed && lines.isEmpty()) return;
+				LockSupport.park(this);
+			}
+		}
+	}
+
+}
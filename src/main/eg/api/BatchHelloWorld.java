@@ -0,0 +1,17 @@
+package eg.api;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A HelloWorld able to greet many recipients in one call, so the cost of calling into
+ * the implementation's language runtime is paid once per batch rather than once per greeting.
+ */
+public interface BatchHelloWorld extends HelloWorld {
+
+	/**
+	 * Greets each recipient in turn, writing the greetings to out.
+	 */
+	void greetAll(List<String> recipients, Appendable out) throws IOException;
+
+}
@@ -0,0 +1,18 @@
+package eg.api;
+
+/**
+ * Where implementations write their greetings, instead of going straight to System.out.
+ */
+public interface OutputSink {
+
+	/**
+	 * Writes a line; it may only be visible once the sink is flushed.
+	 */
+	void println(String line);
+
+	/**
+	 * Returns once every line written so far is visible.
+	 */
+	void flush();
+
+}
@@ -1,19 +1,108 @@
 package eg.osgi.helpers;
 
+import eg.api.AsyncOutputSink;
+import eg.api.BatchHelloWorld;
 import eg.api.HelloWorld;
+import eg.api.OutputSink;
 import org.osgi.framework.*;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
 import org.apache.felix.framework.util.StringMap;
 
+import java.util.Dictionary;
+import java.util.Hashtable;
+
 public abstract class HelloWorldBundle implements BundleActivator {
 
+	/**
+	 * The service property naming the language a HelloWorld is implemented in,
+	 * for example to prefer implementations in a given language.
+	 */
+	public static final String LANGUAGE = "eg.language";
+
 	private ServiceRegistration registration;
+	private ServiceTracker outputTracker;
+	private volatile OutputSink trackedOutput;
+
+	private static OutputSink defaultOutput;
+
+	/**
+	 * Writes to the OutputSink service, or to a shared sink over System.out while there is none.
+	 */
+	private final OutputSink output = new OutputSink() {
+		public void println(String line) {
+			currentOutput().println(line);
+		}
+		public void flush() {
+			currentOutput().flush();
+		}
+	};
 
 	protected abstract HelloWorld getHelloWorld();
 
-	public void start(BundleContext context) throws Exception {
+	/**
+	 * Returns the sink implementations should write their greetings to; pass it to the
+	 * implementation when creating it in {@link #getHelloWorld()}.
+	 */
+	public OutputSink getOutput() {
+		return output;
+	}
+
+	private OutputSink currentOutput() {
+		OutputSink sink = trackedOutput;
+		return (sink != null) ? sink : getDefaultOutput();
+	}
+
+	private static synchronized OutputSink getDefaultOutput() {
+		if(defaultOutput == null) {
+			final AsyncOutputSink sink = new AsyncOutputSink(System.out);
+			// Nobody owns the shared sink, so write what is left of it on exit
+			Runtime.getRuntime().addShutdownHook(new Thread("AsyncOutputSink-close") {
+				public void run() {
+					sink.close();
+				}
+			});
+			defaultOutput = sink;
+		}
+		return defaultOutput;
+	}
+
+	/**
+	 * Returns the implementation language, by default the last part of the
+	 * activator's package name (eg.impl.jruby gives jruby).
+	 */
+	protected String getLanguage() {
+		String name = getClass().getName();
+		String pkg = name.substring(0, Math.max(0, name.lastIndexOf('.')));
+		return pkg.substring(pkg.lastIndexOf('.') + 1);
+	}
+
+	public void start(final BundleContext context) throws Exception {
+		outputTracker = new ServiceTracker(context, OutputSink.class.getName(), new ServiceTrackerCustomizer() {
+			public Object addingService(ServiceReference reference) {
+				Object sink = context.getService(reference);
+				if(trackedOutput == null && sink instanceof OutputSink) trackedOutput = (OutputSink)sink;
+				return sink;
+			}
+			public void modifiedService(ServiceReference reference, Object service) {}
+			public void removedService(ServiceReference reference, Object service) {
+				context.ungetService(reference);
+				if(trackedOutput == service) {
+					Object next = outputTracker.getService();
+					trackedOutput = (next instanceof OutputSink) ? (OutputSink)next : null;
+				}
+			}
+		});
+		outputTracker.open();
+
 		HelloWorld impl = getHelloWorld();
 		System.out.println("Registering the implementation from " + impl.getClass());
-		registration = context.registerService(HelloWorld.class.getName(), impl, null);
+		Dictionary<String, Object> properties = new Hashtable<String, Object>();
+		properties.put(LANGUAGE, getLanguage());
+		String[] classes = (impl instanceof BatchHelloWorld)
+			? new String[] { HelloWorld.class.getName(), BatchHelloWorld.class.getName() }
+			: new String[] { HelloWorld.class.getName() };
+		registration = context.registerService(classes, impl, properties);
 	}
 
 	public void stop(BundleContext context) throws Exception {
@@ -21,6 +110,11 @@ public abstract class HelloWorldBundle implements BundleActivator {
 			registration.unregister();
 			registration = null;
 		}
+		if(outputTracker != null) {
+			output.flush();
+			outputTracker.close();
+			outputTracker = null;
+		}
 	}
 
 }
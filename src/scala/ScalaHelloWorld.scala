@@ -16,10 +16,17 @@
 */
 package eg.impl.scala
 
-import eg.api.HelloWorld
+import eg.api.{BatchHelloWorld, OutputSink}
 
-class ScalaHelloWorld extends HelloWorld {
+class ScalaHelloWorld(output: OutputSink) extends BatchHelloWorld {
   def greet() = {
-    println("Hello, World! (from " + this.getClass() + ")")
+    output.println("Hello, World! (from " + this.getClass() + ")")
+  }
+
+  def greetAll(recipients: java.util.List[String], out: Appendable): Unit = {
+    val it = recipients.iterator()
+    while (it.hasNext()) {
+      out.append("Hello, " + it.next() + "! (from " + this.getClass() + ")\n")
+    }
   }
 }
@@ -21,6 +21,6 @@ import eg.osgi.helpers.HelloWorldBundle
 
 class ScalaHelloWorldBundle extends HelloWorldBundle {
 	
-	def getHelloWorld() = { new ScalaHelloWorld() }
+	def getHelloWorld() = { new ScalaHelloWorld(getOutput()) }
 
 }